@@ -39,6 +39,10 @@ android {
     buildFeatures {
         compose = true
     }
+    androidResources {
+        // precomputed puzzles are memory-mapped out of the APK
+        noCompress += "puzzle"
+    }
 }
 
 dependencies {
@@ -61,4 +65,36 @@ dependencies {
     androidTestImplementation(libs.androidx.compose.ui.test.junit4)
     debugImplementation(libs.androidx.compose.ui.tooling)
     debugImplementation(libs.androidx.compose.ui.test.manifest)
-}
\ No newline at end of file
+}
+// Puzzles for the curated myimg drawables, generated on the JVM by src/precompute with the
+// engine sources from src/main (see PuzzleAssets). Not part of the build: run
+// ./gradlew precomputePuzzles after changing the engine, the settings or the images, and
+// commit the regenerated src/main/assets/puzzles.
+val precomputedAssets = file("src/main/assets")
+
+val compilePrecompute by tasks.registering(JavaCompile::class) {
+    source = fileTree("src/precompute/java")
+    classpath = files(androidComponents.sdkComponents.bootClasspath)
+    options.sourcepath = files("src/main/java")
+    inputs.dir("src/main/java")
+    destinationDirectory.set(layout.buildDirectory.dir("intermediates/precompute_classes"))
+    sourceCompatibility = "11"
+    targetCompatibility = "11"
+}
+
+val precomputePuzzles by tasks.registering(JavaExec::class) {
+    group = "build"
+    description = "Regenerates the puzzle assets for every grid size and color count of the curated images."
+    val drawables = file("src/main/res/drawable")
+    val settings = file("src/main/res/values/setting_arrays.xml")
+    classpath = files(compilePrecompute) + files(androidComponents.sdkComponents.bootClasspath)
+    mainClass.set("com.ungcsci.paintbynumber.PrecomputePuzzles")
+    inputs.files(fileTree(drawables) { include("myimg*") })
+    inputs.file(settings)
+    outputs.dir(precomputedAssets.resolve("puzzles"))
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf(drawables.path, settings.path, precomputedAssets.path)
+    })
+    // only the puzzles, anything else in the assets directory is left alone
+    doFirst { delete(precomputedAssets.resolve("puzzles")) }
+}
@@ -0,0 +1,215 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Picks processing options that fit a time budget on this device.
+ * <p>
+ * A short calibration times the downscale, the bilateral filter and a k-means pass on
+ * synthetic data once per process, plus the coarse Wu pass progressive runs publish first.
+ * It runs cold and overestimates, so every budgeted run then feeds its measured stage times
+ * back through {@link #observe} and the rates settle on what the device really does. From
+ * the rates and the input size {@link #tune} sets aside the coarse pass, keeps denoising
+ * only while it leaves room to cluster, caps the k-means passes to what fits, switches to
+ * mini-batch k-means on a sample of the cells when even a few full passes do not fit, and
+ * to a single Wu pass when that does not fit either. The estimates are rough, so the
+ * deadline handed to k-means is what actually bounds the time.
+ * <p>
+ * The rates are shared by every thread that generates or previews, so they are only read
+ * and written under the class lock.
+ */
+public class AutoTuner {
+    // fewest full k-means passes worth running before sampling instead
+    private static final int MIN_ITERATIONS = 3;
+    // smallest mini-batch worth running before giving up on k-means
+    private static final int MIN_BATCH_SIZE = 256;
+    // most of the budget denoising may take
+    private static final float DENOISE_SHARE = 0.4f;
+
+    private static final int CALIBRATION_SIZE = 64;
+    private static final int CALIBRATION_POINTS = 4096;
+    private static final int CALIBRATION_COLORS = 8;
+    private static final int CALIBRATION_ITERATIONS = 4;
+    // best of a few runs, so the first one paying for class loading and JIT does not count
+    private static final int CALIBRATION_RUNS = 3;
+
+    // nanoseconds on one worker, calibrated on first use and refined by observe()
+    private static double downscale_ns;  // per source pixel
+    private static double coarse_ns;     // per source pixel, downscale plus Wu
+    private static double distance_ns;   // per point, per cluster, per k-means pass
+    private static final Map<Integer, Double> filter_ns = new HashMap<>();  // per source pixel, by radius
+
+    /** What {@link #tune} chose and expects it to cost. */
+    public static class Tuning {
+        public final ImageProcessor.Options options;
+        // share of the cells each k-means step looks at, 1 for full passes
+        public final float sample_rate;
+        public final double estimated_ms;
+
+        Tuning(ImageProcessor.Options options, float sample_rate, double estimated_ms) {
+            this.options = options;
+            this.sample_rate = sample_rate;
+            this.estimated_ms = estimated_ms;
+        }
+
+        @Override
+        public String toString() {
+            String clustering = "";
+            if (options.engine == ImageProcessor.Engine.KMEANS_LAB || options.engine == ImageProcessor.Engine.KMEANS_RGB) {
+                int max_iterations = options.mini_batch ? options.mini_batch_iterations : options.max_iterations;
+                clustering = String.format(Locale.US, " iterations<=%d sample_rate=%.3f", max_iterations, sample_rate);
+            }
+            return String.format(Locale.US, "%s denoise=%b%s estimate=%.1fms",
+                    options.engine, options.denoise, clustering, estimated_ms);
+        }
+    }
+
+    /**
+     * Options for turning a width x height image into a logical_size puzzle with num_colors
+     * colors within budget_ms. base is not modified; its engine is kept when it is not k-means.
+     */
+    public static synchronized Tuning tune(ImageProcessor.Options base, int width, int height, int logical_size,
+                                           int num_colors, long budget_ms) {
+        calibrate(base.denoise_spatial_radius);
+        ImageProcessor.Options options = base.copy();
+        int workers = Math.max(1, options.num_workers);
+
+        double source_pixels = width * (double) height;
+        int num_points = logical_size * logical_size;
+        double remaining = budget_ms * 1e6 - source_pixels * downscale_ns / workers;
+        // the coarse puzzle counts against the same deadline
+        double coarse = options.progressive ? source_pixels * coarse_ns / workers : 0;
+        remaining -= coarse;
+
+        // full passes split across workers; mini-batch steps and its final assignment do not
+        double pass = num_points * (double) num_colors * distance_ns / workers;
+        double single_pass = num_points * (double) num_colors * distance_ns;
+
+        double denoise = source_pixels * filterNanos(options.denoise_spatial_radius) / workers;
+        options.denoise = base.denoise && denoise <= DENOISE_SHARE * remaining
+                && remaining - denoise >= MIN_ITERATIONS * pass;
+        if (options.denoise) remaining -= denoise;
+
+        float sample_rate = 1;
+        double cluster = 0;
+        boolean k_means = options.engine == ImageProcessor.Engine.KMEANS_LAB
+                || options.engine == ImageProcessor.Engine.KMEANS_RGB;
+        if (k_means) {
+            int passes = (int) Math.min(Integer.MAX_VALUE, remaining / pass);
+            int batch_size = (int) Math.min(num_points,
+                    (remaining - single_pass) / (options.mini_batch_iterations * num_colors * distance_ns));
+            if (passes >= MIN_ITERATIONS) {
+                options.mini_batch = false;
+                options.max_iterations = Math.min(base.max_iterations, passes);
+                cluster = options.max_iterations * pass;
+            } else if (batch_size >= MIN_BATCH_SIZE) {
+                options.mini_batch = true;
+                options.batch_size = batch_size;
+                sample_rate = batch_size / (float) num_points;
+                cluster = single_pass + options.mini_batch_iterations * batch_size * num_colors * distance_ns;
+            } else {
+                options.engine = ImageProcessor.Engine.WU;
+                options.mini_batch = false;
+                options.mean_shift = false;
+            }
+        }
+
+        double estimate = source_pixels * downscale_ns / workers + coarse + (options.denoise ? denoise : 0) + cluster;
+        return new Tuning(options, sample_rate, estimate / 1e6);
+    }
+
+    /**
+     * Blends the stage times of a finished run made with tuned options into the rates used
+     * for the next estimate. coarse_nanos is the coarse pass (0 if none ran) and
+     * quantize_nanos the quantizer call alone, without the puzzle and image built after it.
+     */
+    static synchronized void observe(ImageProcessor.Options options, int width, int height, int logical_size,
+                                     int num_colors, int iterations, long[] stage_nanos,
+                                     long coarse_nanos, long quantize_nanos) {
+        int workers = Math.max(1, options.num_workers);
+        double source_pixels = width * (double) height;
+        downscale_ns = blend(downscale_ns,
+                stage_nanos[ImageProcessor.Stage.DOWNSCALE.ordinal()] * workers / source_pixels);
+        if (coarse_nanos > 0) coarse_ns = blend(coarse_ns, coarse_nanos * workers / source_pixels);
+        if (options.denoise) {
+            filter_ns.put(options.denoise_spatial_radius, blend(filterNanos(options.denoise_spatial_radius),
+                    stage_nanos[ImageProcessor.Stage.DENOISE.ordinal()] * workers / source_pixels));
+        }
+        boolean k_means = options.engine == ImageProcessor.Engine.KMEANS_LAB
+                || options.engine == ImageProcessor.Engine.KMEANS_RGB;
+        if (k_means && !options.mini_batch && iterations > 0) {
+            double distances = logical_size * (double) logical_size * num_colors * iterations;
+            distance_ns = blend(distance_ns, quantize_nanos * workers / distances);
+        }
+    }
+
+    private static double blend(double rate, double observed) {
+        return (rate + observed) / 2;
+    }
+
+    private static synchronized void calibrate(int spatial_radius) {
+        if (distance_ns == 0) {
+            int[] pixels = syntheticImage(CALIBRATION_SIZE);
+            Random rand = new Random(1);
+            float[] data = new float[CALIBRATION_POINTS * 3];
+            for (int i = 0; i < data.length; i++) data[i] = rand.nextFloat() * 100;
+            KMeans k_means = new KMeans(1);
+            k_means.setMaxIterations(CALIBRATION_ITERATIONS);
+
+            downscale_ns = Double.MAX_VALUE;
+            coarse_ns = Double.MAX_VALUE;
+            distance_ns = Double.MAX_VALUE;
+            for (int run = 0; run < CALIBRATION_RUNS; run++) {
+                long start = System.nanoTime();
+                new Downscaler(1).downscale(pixels, CALIBRATION_SIZE, CALIBRATION_SIZE, CALIBRATION_SIZE / 4);
+                downscale_ns = Math.min(downscale_ns, (System.nanoTime() - start) / (double) pixels.length);
+
+                start = System.nanoTime();
+                int[] coarse = new Downscaler(1).downscale(pixels, CALIBRATION_SIZE, CALIBRATION_SIZE, CALIBRATION_SIZE / 4);
+                new WuQuantizer().quantize(coarse, CALIBRATION_COLORS, new int[coarse.length]);
+                coarse_ns = Math.min(coarse_ns, (System.nanoTime() - start) / (double) pixels.length);
+
+                start = System.nanoTime();
+                k_means.cluster(data, CALIBRATION_COLORS, new int[CALIBRATION_POINTS]);
+                distance_ns = Math.min(distance_ns, (System.nanoTime() - start)
+                        / ((double) CALIBRATION_POINTS * CALIBRATION_COLORS * k_means.getIterations()));
+            }
+        }
+        filterNanos(spatial_radius);
+    }
+
+    private static synchronized double filterNanos(int spatial_radius) {
+        Double nanos = filter_ns.get(spatial_radius);
+        if (nanos == null) {
+            int[] pixels = syntheticImage(CALIBRATION_SIZE);
+            // the cost depends on the spatial radius only
+            BilateralFilter filter = new BilateralFilter(spatial_radius, spatial_radius, 1);
+            nanos = Double.MAX_VALUE;
+            for (int run = 0; run < CALIBRATION_RUNS; run++) {
+                long start = System.nanoTime();
+                filter.apply(pixels, CALIBRATION_SIZE, CALIBRATION_SIZE);
+                nanos = Math.min(nanos, (System.nanoTime() - start) / (double) pixels.length);
+            }
+            filter_ns.put(spatial_radius, nanos);
+        }
+        return nanos;
+    }
+
+    // smooth gradients plus noise, so the filter and k-means do representative work
+    private static int[] syntheticImage(int size) {
+        Random rand = new Random(1);
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int r = Math.min(255, x * 255 / size + rand.nextInt(16));
+                int g = Math.min(255, y * 255 / size + rand.nextInt(16));
+                int b = Math.min(255, (x + y) * 127 / size + rand.nextInt(16));
+                pixels[y * size + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+}
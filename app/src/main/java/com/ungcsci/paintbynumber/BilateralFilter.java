@@ -0,0 +1,162 @@
+package com.ungcsci.paintbynumber;
+
+/**
+ * Edge preserving bilateral filter over packed ARGB buffers.
+ * <p>
+ * Uses the same kernel as the original Bitmap based filter: spatial weight
+ * max(0, 1 - d^2 / r^2) and range weight max(0, 1 - c^2 / cr^2), where c^2 is the squared RGB
+ * distance. Both are looked up from tables built once per filter, and rows are split
+ * into bands that run on separate workers. Above {@link #SEPARABLE_RADIUS} the filter
+ * runs as a horizontal pass followed by a vertical pass, which costs O(r) per pixel
+ * instead of O(r^2) and closely approximates the full 2D kernel.
+ */
+public class BilateralFilter {
+    public static final int SEPARABLE_RADIUS = 3;
+
+    private final int spatial_radius;
+    private final int num_workers;
+    private final boolean separable;
+    // spatial weight for each (dx, dy) offset, row-major over the (2r+1)^2 window
+    private final float[] spatial_weights;
+    // spatial weight for each offset along one axis, used by the separable passes
+    private final float[] axis_weights;
+    // range weight for each squared RGB distance below color_radius^2
+    private final float[] range_weights;
+
+    public BilateralFilter(int spatial_radius, int color_radius, int num_workers) {
+        this(spatial_radius, color_radius, num_workers, spatial_radius > SEPARABLE_RADIUS);
+    }
+
+    public BilateralFilter(int spatial_radius, int color_radius, int num_workers, boolean separable) {
+        this.spatial_radius = Math.max(1, spatial_radius);
+        this.num_workers = Math.max(1, num_workers);
+        this.separable = separable;
+
+        int r = this.spatial_radius;
+        int side = 2 * r + 1;
+        spatial_weights = new float[side * side];
+        for (int dy = -r; dy <= r; dy++) {
+            for (int dx = -r; dx <= r; dx++) {
+                int dist = (dx * dx) + (dy * dy);
+                spatial_weights[(dy + r) * side + (dx + r)] = Math.max(0, 1 - (dist / (float) (r * r)));
+            }
+        }
+        axis_weights = new float[side];
+        for (int d = -r; d <= r; d++) {
+            axis_weights[d + r] = Math.max(0, 1 - ((d * d) / (float) (r * r)));
+        }
+
+        int color_radius_squared = Math.max(1, color_radius * color_radius);
+        range_weights = new float[color_radius_squared];
+        for (int c = 0; c < color_radius_squared; c++) {
+            range_weights[c] = 1 - (c / (float) color_radius_squared);
+        }
+    }
+
+    /** Filters a width x height buffer and returns a new opaque ARGB buffer. */
+    public int[] apply(int[] pixels, int width, int height) {
+        int[] output = new int[width * height];
+        if (!separable) {
+            Workers.run(num_workers, height,
+                    (start, end) -> filter2D(pixels, output, width, height, start, end));
+            return output;
+        }
+
+        int[] horizontal = new int[width * height];
+        Workers.run(num_workers, height,
+                (start, end) -> filterAxis(pixels, horizontal, width, height, start, end, 1, 0));
+        Workers.run(num_workers, height,
+                (start, end) -> filterAxis(horizontal, output, width, height, start, end, 0, 1));
+        return output;
+    }
+
+    private float rangeWeight(int color_a, int color_b) {
+        int dr = ((color_a >> 16) & 0xFF) - ((color_b >> 16) & 0xFF);
+        int dg = ((color_a >> 8) & 0xFF) - ((color_b >> 8) & 0xFF);
+        int db = (color_a & 0xFF) - (color_b & 0xFF);
+        int color_dist = (dr * dr) + (dg * dg) + (db * db);
+        return (color_dist < range_weights.length) ? range_weights[color_dist] : 0;
+    }
+
+    private void filter2D(int[] pixels, int[] output, int width, int height, int start_row, int end_row) {
+        int r = spatial_radius;
+        int side = 2 * r + 1;
+
+        for (int y = start_row; y < end_row; y++) {
+            int y_min = Math.max(0, y - r);
+            int y_max = Math.min(height - 1, y + r);
+            for (int x = 0; x < width; x++) {
+                int x_min = Math.max(0, x - r);
+                int x_max = Math.min(width - 1, x + r);
+                int curr_pixel = pixels[y * width + x];
+
+                float total_weight = 0;
+                float weighted_sum_red = 0;
+                float weighted_sum_green = 0;
+                float weighted_sum_blue = 0;
+
+                for (int ny = y_min; ny <= y_max; ny++) {
+                    int weight_row = (ny - y + r) * side + r - x;
+                    int pixel_row = ny * width;
+                    for (int nx = x_min; nx <= x_max; nx++) {
+                        float spatial_weight = spatial_weights[weight_row + nx];
+                        if (spatial_weight == 0) continue;
+
+                        int compare_pixel = pixels[pixel_row + nx];
+                        float combined_weight = spatial_weight * rangeWeight(curr_pixel, compare_pixel);
+                        if (combined_weight == 0) continue;
+
+                        total_weight += combined_weight;
+                        weighted_sum_red += combined_weight * ((compare_pixel >> 16) & 0xFF);
+                        weighted_sum_green += combined_weight * ((compare_pixel >> 8) & 0xFF);
+                        weighted_sum_blue += combined_weight * (compare_pixel & 0xFF);
+                    }
+                }
+
+                output[y * width + x] = pack(weighted_sum_red, weighted_sum_green, weighted_sum_blue, total_weight);
+            }
+        }
+    }
+
+    // one dimensional bilateral pass along (step_x, step_y)
+    private void filterAxis(int[] pixels, int[] output, int width, int height, int start_row, int end_row,
+                            int step_x, int step_y) {
+        int r = spatial_radius;
+
+        for (int y = start_row; y < end_row; y++) {
+            for (int x = 0; x < width; x++) {
+                int curr_pixel = pixels[y * width + x];
+
+                float total_weight = 0;
+                float weighted_sum_red = 0;
+                float weighted_sum_green = 0;
+                float weighted_sum_blue = 0;
+
+                for (int d = -r; d <= r; d++) {
+                    int nx = x + d * step_x;
+                    int ny = y + d * step_y;
+                    if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+
+                    int compare_pixel = pixels[ny * width + nx];
+                    float combined_weight = axis_weights[d + r] * rangeWeight(curr_pixel, compare_pixel);
+                    if (combined_weight == 0) continue;
+
+                    total_weight += combined_weight;
+                    weighted_sum_red += combined_weight * ((compare_pixel >> 16) & 0xFF);
+                    weighted_sum_green += combined_weight * ((compare_pixel >> 8) & 0xFF);
+                    weighted_sum_blue += combined_weight * (compare_pixel & 0xFF);
+                }
+
+                output[y * width + x] = pack(weighted_sum_red, weighted_sum_green, weighted_sum_blue, total_weight);
+            }
+        }
+    }
+
+    private static int pack(float red, float green, float blue, float total_weight) {
+        // the center tap always has weight 1, so total_weight is never 0
+        int curr_red = (int) (red / total_weight);
+        int curr_green = (int) (green / total_weight);
+        int curr_blue = (int) (blue / total_weight);
+        return (0xFF << 24) + (curr_red << 16) + (curr_green << 8) + (curr_blue);
+    }
+}
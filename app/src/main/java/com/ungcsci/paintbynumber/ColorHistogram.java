@@ -0,0 +1,89 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * Weighted histogram of the distinct colors in a pixel buffer.
+ * <p>
+ * With 8 bits per channel every distinct color gets its own entry. With fewer bits,
+ * colors that share the top bits of each channel fall into one bucket whose color is
+ * the mean of its members. {@link #getLookup()} maps every pixel back to its entry so
+ * results computed per entry can be expanded to the full image.
+ */
+public class ColorHistogram {
+    private final int[] colors;
+    private final int[] weights;
+    private final int[] lookup;
+
+    public ColorHistogram(int[] pixels, int bits_per_channel) {
+        int bits = Math.max(1, Math.min(8, bits_per_channel));
+        int shift = 8 - bits;
+        int mask = (0xFF >> shift) << shift;
+        int key_mask = (mask << 16) | (mask << 8) | mask;
+
+        int num_pixels = pixels.length;
+        int table_size = Integer.highestOneBit(Math.max(16, num_pixels * 2 - 1)) << 1;
+        int[] table_keys = new int[table_size];
+        int[] table_entries = new int[table_size];
+        Arrays.fill(table_entries, -1);
+
+        lookup = new int[num_pixels];
+        int[] counts = new int[Math.min(num_pixels, 1 << (bits * 3))];
+        long[] sum_red = new long[counts.length];
+        long[] sum_green = new long[counts.length];
+        long[] sum_blue = new long[counts.length];
+        int num_entries = 0;
+
+        for (int i = 0; i < num_pixels; i++) {
+            int color = pixels[i];
+            int key = color & key_mask;
+
+            // open addressing with linear probing
+            int slot = (key * 0x9E3779B1) >>> (32 - Integer.numberOfTrailingZeros(table_size));
+            while (table_entries[slot] != -1 && table_keys[slot] != key) {
+                slot = (slot + 1) & (table_size - 1);
+            }
+            int entry = table_entries[slot];
+            if (entry == -1) {
+                entry = num_entries++;
+                table_keys[slot] = key;
+                table_entries[slot] = entry;
+            }
+
+            lookup[i] = entry;
+            counts[entry]++;
+            sum_red[entry] += (color >> 16) & 0xFF;
+            sum_green[entry] += (color >> 8) & 0xFF;
+            sum_blue[entry] += color & 0xFF;
+        }
+
+        colors = new int[num_entries];
+        weights = Arrays.copyOf(counts, num_entries);
+        for (int e = 0; e < num_entries; e++) {
+            int count = counts[e];
+            int red = (int) ((sum_red[e] + count / 2) / count);
+            int green = (int) ((sum_green[e] + count / 2) / count);
+            int blue = (int) ((sum_blue[e] + count / 2) / count);
+            colors[e] = (0xFF << 24) | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    /** Opaque ARGB color of each entry. */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /** Number of pixels that fell into each entry. */
+    public int[] getWeights() {
+        return weights;
+    }
+
+    /** Entry index of each input pixel. */
+    public int[] getLookup() {
+        return lookup;
+    }
+}
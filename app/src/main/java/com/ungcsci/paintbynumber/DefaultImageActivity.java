@@ -8,6 +8,7 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.GridView;
 import android.widget.SeekBar;
+import android.widget.ImageView;
 import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
@@ -57,6 +58,7 @@ public class DefaultImageActivity extends AppCompatActivity {
         final Slider colorCountSlider = dialogView.findViewById(R.id.color_count_slider);
         final TextView gridSizeValueText = dialogView.findViewById(R.id.grid_size_value_text);
         final TextView colorCountValueText = dialogView.findViewById(R.id.color_count_value_text);
+        final ImageView previewImage = dialogView.findViewById(R.id.preview_image);
 
         gridSizeSlider.setValueFrom(0);
         gridSizeSlider.setValueTo(gridSizes.length - 1);
@@ -72,14 +74,28 @@ public class DefaultImageActivity extends AppCompatActivity {
         colorCountSlider.setValue(3);
         colorCountValueText.setText(String.valueOf(colorCounts[3]));
 
+        //start generating while the player decides, restarted as either slider settles
+        final PendingPuzzle pendingPuzzle = new PendingPuzzle(this, null, selectedImageId);
+        pendingPuzzle.start(gridSizes[3], colorCounts[3]);
+        final boolean[] handedOff = {false};
+
+        //live preview, re-quantized from the previous result as the sliders move
+        final LivePreview livePreview = new LivePreview(this, null, selectedImageId, gridSizes[gridSizes.length - 1],
+                new ImageProcessor.Options(), previewImage::setImageBitmap);
+        livePreview.request(gridSizes[3], colorCounts[3]);
+
         gridSizeSlider.addOnChangeListener((slider, value, fromUser) -> {
             int index = (int) value;
             gridSizeValueText.setText(String.valueOf(gridSizes[index]));
+            pendingPuzzle.update(gridSizes[index], colorCounts[(int) colorCountSlider.getValue()]);
+            livePreview.request(gridSizes[index], colorCounts[(int) colorCountSlider.getValue()]);
         });
 
         colorCountSlider.addOnChangeListener((slider, value, fromUser) -> {
             int index = (int) value;
             colorCountValueText.setText(String.valueOf(colorCounts[index]));
+            pendingPuzzle.update(gridSizes[(int) gridSizeSlider.getValue()], colorCounts[index]);
+            livePreview.request(gridSizes[(int) gridSizeSlider.getValue()], colorCounts[index]);
         });
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -92,17 +108,25 @@ public class DefaultImageActivity extends AppCompatActivity {
                         int gridSize = gridSizes[(int) gridSizeSlider.getValue()];
                         int colorCount = colorCounts[(int) colorCountSlider.getValue()];
 
-                        launchGame(selectedImageId, gridSize, colorCount);
+                        handedOff[0] = true;
+                        launchGame(selectedImageId, gridSize, colorCount,
+                                pendingPuzzle.handOff(gridSize, colorCount));
                     }
                 })
                 .setNegativeButton("Cancel", (dialog, id) -> dialog.cancel());
 
         AlertDialog dialog = builder.create();
+        //a dialog closed without starting the game drops the speculative work
+        dialog.setOnDismissListener(d -> {
+            livePreview.close();
+            if (!handedOff[0]) pendingPuzzle.cancel();
+        });
         dialog.show();
     }
 
-    private void launchGame(int imageId, int gridSize, int colorCount) {
+    private void launchGame(int imageId, int gridSize, int colorCount, String handoffId) {
         Intent intent = new Intent(this, GameActivity.class);
+        intent.putExtra(PendingPuzzle.EXTRA_HANDOFF_ID, handoffId);
         intent.putExtra(EXTRA_IMAGE_ID, imageId);
         intent.putExtra(EXTRA_GRID_SIZE, gridSize);
         intent.putExtra(EXTRA_COLOR_COUNT, colorCount);
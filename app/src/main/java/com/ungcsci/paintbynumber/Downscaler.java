@@ -0,0 +1,122 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * Crops the center square of a packed ARGB buffer and area-averages it down to
+ * size x size in one pass.
+ * <p>
+ * Every output pixel is the mean of the source area it covers, with partially covered
+ * source pixels weighted by the covered fraction. Averaging happens in linear light (the
+ * sRGB channels go through {@link LabConverter#toLinear}), so dark and bright details
+ * mix the way they do optically instead of darkening. Results can be written as ARGB,
+ * as LAB straight from the linear averages, or both. Output rows are split into bands
+ * that run on separate workers. Works on plain int[] buffers so it runs off Android too.
+ */
+public class Downscaler {
+    private final int num_workers;
+
+    public Downscaler(int num_workers) {
+        this.num_workers = Math.max(1, num_workers);
+    }
+
+    /** Center square of a width x height buffer, averaged down to size x size opaque ARGB. */
+    public int[] downscale(int[] pixels, int width, int height, int size) {
+        int[] output = new int[size * size];
+        downscale(pixels, width, height, size, output, null);
+        return output;
+    }
+
+    /**
+     * @param argb_output receives size * size opaque ARGB pixels, or null
+     * @param lab_output  receives size * size interleaved {L, a, b} triples, or null
+     */
+    public void downscale(int[] pixels, int width, int height, int size, int[] argb_output, float[] lab_output) {
+        int source_size = Math.min(width, height);
+        int x_offset = (width - source_size) / 2;
+        int y_offset = (height - source_size) / 2;
+        Spans spans = new Spans(source_size, size);
+
+        Workers.run(num_workers, size, (start_row, end_row) -> {
+            float[] row_sums = new float[size * 3];
+            float[] lab = new float[3];
+
+            for (int y = start_row; y < end_row; y++) {
+                Arrays.fill(row_sums, 0);
+
+                for (int sy = spans.offsets[y]; sy < spans.offsets[y + 1]; sy++) {
+                    float y_weight = spans.weights[sy];
+                    int row = (y_offset + spans.indexes[sy]) * width + x_offset;
+
+                    for (int x = 0; x < size; x++) {
+                        float red = 0;
+                        float green = 0;
+                        float blue = 0;
+                        for (int sx = spans.offsets[x]; sx < spans.offsets[x + 1]; sx++) {
+                            float x_weight = spans.weights[sx];
+                            int color = pixels[row + spans.indexes[sx]];
+                            red += x_weight * LabConverter.toLinear((color >> 16) & 0xFF);
+                            green += x_weight * LabConverter.toLinear((color >> 8) & 0xFF);
+                            blue += x_weight * LabConverter.toLinear(color & 0xFF);
+                        }
+                        row_sums[x * 3] += y_weight * red;
+                        row_sums[x * 3 + 1] += y_weight * green;
+                        row_sums[x * 3 + 2] += y_weight * blue;
+                    }
+                }
+
+                for (int x = 0; x < size; x++) {
+                    int i = y * size + x;
+                    float red = row_sums[x * 3];
+                    float green = row_sums[x * 3 + 1];
+                    float blue = row_sums[x * 3 + 2];
+                    if (argb_output != null) {
+                        argb_output[i] = (0xFF << 24) | (LabConverter.toSrgb(red) << 16)
+                                | (LabConverter.toSrgb(green) << 8) | LabConverter.toSrgb(blue);
+                    }
+                    if (lab_output != null) {
+                        LabConverter.linear2lab(red, green, blue, lab, 0);
+                        System.arraycopy(lab, 0, lab_output, i * 3, 3);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Source pixels and weights covering each output pixel along one axis. The pixels of
+     * output d are indexes[offsets[d]] .. indexes[offsets[d + 1] - 1] and their weights
+     * sum to 1.
+     */
+    private static class Spans {
+        final int[] offsets;
+        final int[] indexes;
+        final float[] weights;
+
+        Spans(int source_size, int size) {
+            offsets = new int[size + 1];
+            // each output pixel touches at most ceil(source / size) + 1 source pixels
+            int max_span = (source_size + size - 1) / size + 1;
+            int[] all_indexes = new int[size * max_span];
+            float[] all_weights = new float[size * max_span];
+            double scale = (double) source_size / size;
+
+            int count = 0;
+            for (int d = 0; d < size; d++) {
+                offsets[d] = count;
+                double start = d * scale;
+                double end = (d + 1) * scale;
+                for (int s = (int) start; s < end && s < source_size; s++) {
+                    double covered = Math.min(end, s + 1) - Math.max(start, s);
+                    if (covered <= 0) continue;
+                    all_indexes[count] = s;
+                    all_weights[count] = (float) (covered / scale);
+                    count++;
+                }
+            }
+            offsets[size] = count;
+            indexes = Arrays.copyOf(all_indexes, count);
+            weights = Arrays.copyOf(all_weights, count);
+        }
+    }
+}
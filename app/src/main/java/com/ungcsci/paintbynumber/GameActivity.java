@@ -2,23 +2,38 @@ package com.ungcsci.paintbynumber;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.util.Log;
+import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import java.io.IOException;
-
 public class GameActivity extends AppCompatActivity {
+    private static final String TAG = "GameActivity";
+
     private PaintView paintView;
     private Button toggleNumbersButton;
     private Button admireButton;
     private Button mainMenuButton;
     private Button shareButton;
+    private Button fewerColorsButton;
+    private Button moreColorsButton;
+    private TextView colorCountText;
+    private int[] colorCounts;
+    private int colorCount;
+    private PaletteHierarchy hierarchy;
+    private PaintJournal journal;
+
+    private View loadingPanel;
+    private ProgressBar loadingProgress;
+    private TextView loadingText;
+    private PendingPuzzle generation;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,36 +44,25 @@ public class GameActivity extends AppCompatActivity {
         String imageUriString = intent.getStringExtra(DefaultImageActivity.EXTRA_IMAGE_URI);
         int imageId = intent.getIntExtra(DefaultImageActivity.EXTRA_IMAGE_ID, -1);
         int gridSize = intent.getIntExtra(DefaultImageActivity.EXTRA_GRID_SIZE, -1);
-        int colorCount = intent.getIntExtra(DefaultImageActivity.EXTRA_COLOR_COUNT, -1);
-
-        Bitmap bitmap = null;
-
-        if (imageUriString != null) {
-            Uri imageUri = Uri.parse(imageUriString);
-            try {
-                bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUri);
-            } catch (IOException e) {e.printStackTrace();}
-        }
-        else if (imageId != -1) {
-            bitmap = BitmapFactory.decodeResource(getResources(), imageId);
-        }
-
-        ImageProcessor ip = new ImageProcessor(GameActivity.this, bitmap, gridSize, colorCount);
-
-        int[] palette = ip.getPalette();
-        int[][] grid = ip.getColorGrid();
-        Bitmap posterized_image = ip.getPosterizedImage(512);
-
-        paintView = findViewById(R.id.paintActivity);
-        paintView.loadImageData(gridSize, palette, grid, posterized_image);
+        colorCount = intent.getIntExtra(DefaultImageActivity.EXTRA_COLOR_COUNT, -1);
+        colorCounts = getResources().getIntArray(R.array.color_counts);
 
         //XML references
+        paintView = findViewById(R.id.paintActivity);
         toggleNumbersButton = findViewById(R.id.toggleNumbersButton);
         admireButton = findViewById(R.id.admireButton);
         mainMenuButton = findViewById(R.id.mainMenuButton);
         shareButton = findViewById(R.id.shareButton);
+        fewerColorsButton = findViewById(R.id.fewerColorsButton);
+        moreColorsButton = findViewById(R.id.moreColorsButton);
+        colorCountText = findViewById(R.id.colorCountText);
         ImageButton drawModeButton = findViewById(R.id.drawModeButton);
         ImageButton zoomModeButton = findViewById(R.id.zoomModeButton);
+        ImageButton undoButton = findViewById(R.id.undoButton);
+        ImageButton redoButton = findViewById(R.id.redoButton);
+        loadingPanel = findViewById(R.id.loadingPanel);
+        loadingProgress = findViewById(R.id.loadingProgress);
+        loadingText = findViewById(R.id.loadingText);
 
         //PaintView Button Connection
         paintView.setAdmireButton(admireButton, this);
@@ -66,8 +70,149 @@ public class GameActivity extends AppCompatActivity {
         paintView.setShareButton(shareButton);
         paintView.setDrawModeButton(drawModeButton);
         paintView.setZoomModeButton(zoomModeButton);
+        paintView.setUndoButton(undoButton);
+        paintView.setRedoButton(redoButton);
 
         //Toggle Numbers Button
         toggleNumbersButton.setOnClickListener(v -> paintView.toggleNumbers());
+        toggleNumbersButton.setEnabled(false);
+
+        //Color Count Buttons, stepping through the same counts the options dialog offers
+        fewerColorsButton.setOnClickListener(v -> stepColorCount(-1));
+        moreColorsButton.setOnClickListener(v -> stepColorCount(1));
+        updateColorCountButtons();
+
+        //pick up the generation started by the options dialog, or generate off the UI thread now
+        generation = PendingPuzzle.claim(intent.getStringExtra(PendingPuzzle.EXTRA_HANDOFF_ID));
+        if (generation == null) {
+            Uri imageUri = (imageUriString != null) ? Uri.parse(imageUriString) : null;
+            generation = new PendingPuzzle(this, imageUri, imageId);
+            generation.start(gridSize, colorCount);
+        }
+        generation.attach(new PuzzleGenerator.Listener() {
+            @Override
+            public void onProgress(ImageProcessor.Stage stage, int step, int num_steps) {
+                showProgress(stage, step, num_steps);
+            }
+
+            @Override
+            public void onIntermediate(Puzzle puzzle) {
+                showCoarsePuzzle(puzzle);
+            }
+
+            @Override
+            public void onComplete(Puzzle puzzle, PaletteHierarchy hierarchy, Bitmap posterized_image) {
+                showPuzzle(puzzle, hierarchy, posterized_image);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Unable to generate the puzzle", e);
+                Toast.makeText(GameActivity.this, R.string.loading_failed, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+    }
+
+    @Override
+    protected void onPause() {
+        //the process may be killed from here on, so write queued paints now
+        if (journal != null) journal.flush();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        //backing out stops any generation still in progress
+        if (generation != null) generation.cancel();
+        if (journal != null) journal.close();
+        super.onDestroy();
+    }
+
+    private void showProgress(ImageProcessor.Stage stage, int step, int num_steps) {
+        //each stage fills its own slice of the bar, clustering takes the largest
+        int start, end, label;
+        switch (stage) {
+            case DECODE:
+                start = 0; end = 10; label = R.string.loading_decode;
+                break;
+            case DENOISE:
+                start = 10; end = 30; label = R.string.loading_denoise;
+                break;
+            case DOWNSCALE:
+                start = 30; end = 40; label = R.string.loading_downscale;
+                break;
+            case CLUSTER:
+            default:
+                start = 40; end = 100; label = R.string.loading_cluster;
+                break;
+        }
+        loadingProgress.setProgress(start + (end - start) * step / Math.max(1, num_steps));
+        loadingText.setText(label);
+    }
+
+    //shows a coarse puzzle that cannot be painted until the final one replaces it
+    private void showCoarsePuzzle(Puzzle puzzle) {
+        //coarse puzzles come at the largest color count, so merge down to the chosen one for display
+        int shownColors = Math.min(colorCount, puzzle.getNumColors());
+        paintView.loadPuzzle(new PaletteHierarchy(puzzle, shownColors).getPuzzle(shownColors), null);
+        paintView.setLocked(true);
+        loadingPanel.setVisibility(View.GONE);
+        paintView.setVisibility(View.VISIBLE);
+        paintView.invalidate();
+    }
+
+    //starts from the puzzle made for the chosen count, the hierarchy only serves later changes
+    private void showPuzzle(Puzzle puzzle, PaletteHierarchy hierarchy, Bitmap posterized_image) {
+        this.hierarchy = hierarchy;
+        colorCount = puzzle.getNumColors();
+        if (hierarchy != null) {
+            paintView.loadPuzzle(puzzle, posterized_image, hierarchy);
+        } else {
+            paintView.loadPuzzle(puzzle, posterized_image);
+        }
+        resumeProgress(puzzle);
+        paintView.setLocked(false);
+        paintView.invalidate();
+        loadingPanel.setVisibility(View.GONE);
+        paintView.setVisibility(View.VISIBLE);
+        toggleNumbersButton.setEnabled(true);
+        updateColorCountButtons();
+    }
+
+    //picks up where the last game on this puzzle left off, then saves paints as they happen
+    private void resumeProgress(Puzzle start) {
+        if (journal != null) journal.close();
+        journal = new PaintJournal(this, start);
+        PaintJournal.Progress saved = journal.open(paintView.getColorCount());
+        if (saved != null && saved.color_count != paintView.getColorCount()) {
+            if (hierarchy != null && saved.color_count >= hierarchy.getMinColors()
+                    && saved.color_count <= hierarchy.getMaxColors()) {
+                colorCount = saved.color_count;
+                paintView.setColorCount(colorCount);
+            } else {
+                //saved with a color count this puzzle does not offer, so start over
+                saved = null;
+                journal.reset(paintView.getColorCount(), new int[start.getSize()][start.getSize()]);
+            }
+        }
+        if (saved != null) paintView.restorePaint(saved.cells);
+        paintView.setJournal(journal);
+    }
+
+    //moves to the next offered color count in direction, remapping the puzzle in place
+    private void stepColorCount(int direction) {
+        int index = 0;
+        while (index < colorCounts.length - 1 && colorCounts[index] < colorCount) index++;
+        int next = Math.max(0, Math.min(index + direction, colorCounts.length - 1));
+        colorCount = colorCounts[next];
+        paintView.setColorCount(colorCount);
+        updateColorCountButtons();
+    }
+
+    private void updateColorCountButtons() {
+        colorCountText.setText(getString(R.string.color_count_label, colorCount));
+        fewerColorsButton.setEnabled(hierarchy != null && colorCount > hierarchy.getMinColors());
+        moreColorsButton.setEnabled(hierarchy != null && colorCount < hierarchy.getMaxColors());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images at roughly the size they will be used at.
+ * <p>
+ * The bounds are read first, then the image is decoded with the largest power of two
+ * inSampleSize that still leaves at least the requested number of pixels. Puzzles only need
+ * the center square, so {@link #loadSquare} decodes just that region through a
+ * BitmapRegionDecoder, and peak memory and decode time follow the grid size instead of the
+ * camera resolution.
+ */
+public class ImageLoader {
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final Context context;
+
+    public ImageLoader(Context context) {
+        this.context = context;
+    }
+
+    /** Center square of the image, between target_size and twice that on a side. */
+    public Bitmap loadSquare(Uri uri, int target_size) throws IOException {
+        return loadSquare(uriSource(uri), target_size);
+    }
+
+    /** Center square of a drawable or raw resource, between target_size and twice that on a side. */
+    public Bitmap loadSquare(int resource_id, int target_size) throws IOException {
+        return loadSquare(() -> context.getResources().openRawResource(resource_id), target_size);
+    }
+
+    /** Whole image with its shorter side between min_size and twice that, for display. */
+    public Bitmap load(Uri uri, int min_size) throws IOException {
+        Source source = uriSource(uri);
+        BitmapFactory.Options bounds = readBounds(source);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(Math.min(bounds.outWidth, bounds.outHeight), min_size);
+        return decode(source, options);
+    }
+
+    /** Largest power of two that keeps size / sample size at or above target_size. */
+    public static int sampleSizeFor(int size, int target_size) {
+        int sample_size = 1;
+        while (size / (sample_size * 2) >= Math.max(1, target_size)) {
+            sample_size *= 2;
+        }
+        return sample_size;
+    }
+
+    private Source uriSource(Uri uri) {
+        return () -> {
+            InputStream in = context.getContentResolver().openInputStream(uri);
+            if (in == null) throw new FileNotFoundException("Unable to open " + uri);
+            return in;
+        };
+    }
+
+    private Bitmap loadSquare(Source source, int target_size) throws IOException {
+        BitmapFactory.Options bounds = readBounds(source);
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        int size = Math.min(width, height);
+        int x_offset = (width - size) / 2;
+        int y_offset = (height - size) / 2;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(size, target_size);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap square = null;
+        try (InputStream in = source.open()) {
+            BitmapRegionDecoder decoder = newRegionDecoder(in);
+            try {
+                square = decoder.decodeRegion(new Rect(x_offset, y_offset, x_offset + size, y_offset + size), options);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException e) {
+            // formats without region support (e.g. GIF) fall through to a full decode
+        }
+        if (square != null) return square;
+
+        Bitmap full = decode(source, options);
+        int sampled_size = Math.min(full.getWidth(), full.getHeight());
+        return Bitmap.createBitmap(full, (full.getWidth() - sampled_size) / 2,
+                (full.getHeight() - sampled_size) / 2, sampled_size, sampled_size);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static BitmapRegionDecoder newRegionDecoder(InputStream in) throws IOException {
+        // the isShareable flag was ignored long before it was deprecated in API 31
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) return BitmapRegionDecoder.newInstance(in);
+        return BitmapRegionDecoder.newInstance(in, false);
+    }
+
+    private static BitmapFactory.Options readBounds(Source source) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = source.open()) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) throw new IOException("Unable to read image bounds");
+        return bounds;
+    }
+
+    private static Bitmap decode(Source source, BitmapFactory.Options options) throws IOException {
+        Bitmap bitmap;
+        try (InputStream in = source.open()) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) throw new IOException("Unable to decode image");
+        return bitmap;
+    }
+}
@@ -9,17 +9,137 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
-import java.util.Random;
 
 public class ImageProcessor {
+    /** Bump whenever a change alters the puzzles generated from the same image and options. */
+    public static final int ALGORITHM_VERSION = 1;
+
+    /** Palette reduction engines. K-means is the slowest and best; the others are one pass. */
+    public enum Engine { KMEANS_LAB, KMEANS_RGB, OCTREE, MEDIAN_CUT, WU }
+
+    /** Pipeline stages reported to a {@link ProgressListener}. DOWNSCALE includes the LAB conversion. */
+    public enum Stage { DECODE, DENOISE, DOWNSCALE, CLUSTER }
+
+    /**
+     * Receives progress on the processing thread. Throwing (e.g. a CancellationException)
+     * abandons the run.
+     */
+    public interface ProgressListener {
+        void onProgress(Stage stage, int step, int num_steps);
+
+        /** In progressive mode, each improving puzzle before the final one. */
+        default void onIntermediateResult(Puzzle puzzle) {}
+    }
+
+    /** Tuning knobs for the posterize pipeline. */
+    public static class Options implements Cloneable {
+        public Engine engine = Engine.KMEANS_LAB;
+
+        // edge preserving bilateral filter on the cropped image before scaling
+        public boolean denoise = true;
+        public int denoise_spatial_radius = 5;
+        public int denoise_color_radius = 5;
+
+        // threads used by k-means; 1 runs everything on the calling thread
+        public int num_workers = Runtime.getRuntime().availableProcessors();
+        // cluster a weighted histogram of distinct colors instead of every pixel
+        public boolean use_histogram = false;
+        // bits kept per channel when building the histogram; 8 is exact
+        public int histogram_bits = 5;
+        public KMeans.Seeding seeding = KMeans.Seeding.GREEDY_KMEANS_PLUS_PLUS;
+        public long seed = KMeans.DEFAULT_SEED;
+        public int max_iterations = 20;
+        // stop once no centroid moves further than this (LAB or RGB units); 0 disables
+        public float tolerance = 0.5f;
+        // Hamerly bounds; same result as plain Lloyd, fewer distance computations
+        public boolean accelerated = true;
+        // learn centroids from random batches, then assign every pixel once
+        public boolean mini_batch = false;
+        public int batch_size = 1024;
+        public int mini_batch_iterations = 50;
+        // also run full k-means to measure how much worse the mini-batch result is
+        public boolean report_quality_gap = false;
+        // seed k-means with the strongest mean shift modes of the colors
+        public boolean mean_shift = false;
+        // mean shift window radius and grid cell size, in LAB or RGB units
+        public float mean_shift_bandwidth = 8f;
+        // with mean_shift, use one color per mode holding min_mode_fraction of the pixels,
+        // between min_colors and the requested number of colors
+        public boolean auto_colors = false;
+        public int min_colors = 4;
+        public float min_mode_fraction = 0.01f;
+        // with a progress listener: publish a Wu puzzle of the raw image first, then seed
+        // k-means with it and publish the result every few iterations
+        public boolean progressive = false;
+        // above zero, also build a PaletteHierarchy down to this many colors
+        public int hierarchy_min_colors = 0;
+        // with hierarchy_min_colors, cluster at this many colors to build the hierarchy from,
+        // then refine the requested count starting from its level; 0 starts at the requested count
+        public int hierarchy_max_colors = 0;
+        // above zero, let AutoTuner pick engine, sampling, iteration cap and denoise for this
+        // budget, and stop k-means at the deadline with the best result so far
+        public long time_budget_ms = 0;
+
+        /** The settings that change the generated puzzle, e.g. for cache keys. */
+        public String algorithmId() {
+            StringBuilder id = new StringBuilder(engine.name());
+            if (denoise) id.append("-denoise:").append(denoise_spatial_radius).append(',').append(denoise_color_radius);
+            if (use_histogram) id.append("-histogram:").append(histogram_bits);
+            if (engine == Engine.KMEANS_LAB || engine == Engine.KMEANS_RGB) {
+                id.append("-seeding:").append(seeding).append(',').append(seed)
+                        .append("-iterations:").append(max_iterations).append(',').append(tolerance);
+                if (mini_batch) id.append("-mini_batch:").append(batch_size).append(',').append(mini_batch_iterations);
+                if (mean_shift) id.append("-mean_shift:").append(mean_shift_bandwidth);
+                if (mean_shift && auto_colors) id.append("-auto:").append(min_colors).append(',').append(min_mode_fraction);
+                if (progressive) id.append("-progressive");
+            }
+            if (hierarchy_min_colors > 0 && hierarchy_max_colors > 0) {
+                id.append("-hierarchy:").append(hierarchy_max_colors);
+            }
+            if (time_budget_ms > 0) id.append("-budget:").append(time_budget_ms);
+            return id.toString();
+        }
+
+        public Options copy() {
+            try {
+                return (Options) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private final Context context;
+    private Options options;
+    private final ProgressListener progress_listener;
     private final Bitmap original_image;
     private Bitmap posterized_image;
-    private int[] palette;
+    private Puzzle puzzle;
+    private PaletteHierarchy hierarchy;
     private int[][] color_grid;
+    private int iterations;
+    private double inertia;
+    private double quality_gap = Double.NaN;
+    private AutoTuner.Tuning tuning;
+    private boolean reached_deadline;
+    private final long[] stage_nanos = new long[Stage.values().length];
+    // parts of the CLUSTER stage the tuner models separately
+    private long coarse_nanos;
+    private long quantize_nanos;
 
     public ImageProcessor(Context context, Bitmap image, int logical_size, int num_colors) {
+        this(context, image, logical_size, num_colors, new Options());
+    }
+
+    public ImageProcessor(Context context, Bitmap image, int logical_size, int num_colors, Options options) {
+        this(context, image, logical_size, num_colors, options, null);
+    }
+
+    public ImageProcessor(Context context, Bitmap image, int logical_size, int num_colors, Options options,
+                          ProgressListener progress_listener) {
         this.context = context;
+        this.options = options;
+        this.progress_listener = progress_listener;
 
         original_image = image;
         posterizeImage(logical_size, num_colors);
@@ -40,409 +160,223 @@ public class ImageProcessor {
         return null;
     }
 
-    public int[] getPalette() {
-        if (posterized_image == null) return null;
-        Arrays.sort(palette);
-        return palette;
+    /** Palette and per cell color indexes of the generated puzzle, at the requested color count. */
+    public Puzzle getPuzzle() {
+        return puzzle;
     }
 
-    public int[][] getColorGrid() {
-        if (posterized_image == null) return null;
-        if (color_grid != null) return color_grid;
-
-        int width = posterized_image.getWidth();
-        int height = posterized_image.getHeight();
-
-        int[] pixels = new int[width*height];
-        posterized_image.getPixels(pixels, 0, width, 0, 0, width, height);
-        color_grid = new int[width][height];
-
-        for (int x = 0; x < width; x++){
-            for (int y = 0; y < height; y++){
-                color_grid[x][y] = pixels[y * width + x];
-            }
-        }
-        return color_grid;
+    /**
+     * Versions of the puzzle from options.hierarchy_max_colors (or the requested count) down to
+     * options.hierarchy_min_colors, or null unless that is set.
+     */
+    public PaletteHierarchy getHierarchy() {
+        return hierarchy;
     }
 
-    private void posterizeImage(int logical_size, int num_colors) {
-        Bitmap logical_image = cropToSquare(original_image);
-//        logical_image = denoiseBilateral(logical_image, 5, 5);
-        logical_image = Bitmap.createScaledBitmap(logical_image, logical_size, logical_size, true);
-//        posterized_image = kMeansPaletteReductionRGB(logical_image, num_colors);
-        posterized_image = kMeansPaletteReductionLAB(logical_image, num_colors);
-//        posterized_image = logical_image;
+    public int[] getPalette() {
+        if (puzzle == null) return null;
+        return puzzle.getPalette();
     }
 
-    private float labF(float t){
-        if (t > 0.008856f) {
-            return (float) Math.pow(t, (1f / 3f));
-        }
-        else {
-            t *= 7.787f;
-            t += (16f/116f);
-            return t;
+    public static Quantizer createQuantizer(Options options) {
+        switch (options.engine) {
+            case KMEANS_RGB:
+                return new KMeansQuantizer(options, false);
+            case OCTREE:
+                return new OctreeQuantizer();
+            case MEDIAN_CUT:
+                return new MedianCutQuantizer();
+            case WU:
+                return new WuQuantizer();
+            case KMEANS_LAB:
+            default:
+                return new KMeansQuantizer(options, true);
         }
     }
-    private float[] rgb2lab(int red, int green, int blue) {
-        // normalize
-        float r = red / 255f;
-        float g = green / 255f;
-        float b = blue / 255f;
-
-        // apply gamma correction
-        if (r > 0.04045f) {
-            r = (float) Math.pow((r + 0.055f) / 1.055f, 2.4f);
-        } else {r /= 12.92f;}
-
-        if (g > 0.04045f) {
-            g = (float) Math.pow((g + 0.055f) / 1.055f, 2.4f);
-        } else {g /= 12.92f;}
-
-        if (b > 0.04045f) {
-            b = (float) Math.pow((b + 0.055f) / 1.055f, 2.4f);
-        } else {b /= 12.92f;}
-
-        // convert to intermediate XYZ color space
-        float x = (r * 0.4124564f) + (g * 0.3575761f) + (b * 0.1804375f);
-        float y = (r * 0.2126729f) + (g * 0.7151522f) + (b * 0.0721750f);
-        float z = (r * 0.0193339f) + (g * 0.1191920f) + (b * 0.9503041f);
-
-        // reference white (D65)
-        float x_n = 0.95047f;
-        float y_n = 1.00000f;
-        float z_n = 1.08883f;
-
-        // convert XYZ to lab
-        float L = 116f * labF(y / y_n) - 16f;
-        float A = 500f * (labF(x / x_n) - labF(y / y_n));
-        float B = 200f * (labF(y / y_n) - labF(z / z_n));
-
-        return new float[]{L, A, B};
-    }
 
-    private float labInvF(float t) {
-        float t3 = t * t * t;
-        if (t3 > 0.008856f) {
-            return t3;
-        } else {
-            return (t - 16f / 116f) / 7.787f;
-        }
+    /** Number of k-means passes used to build the puzzle; 0 for the one pass engines. */
+    public int getIterations() {
+        return iterations;
     }
 
-    private int[] lab2rgb(float L, float A, float B) {
-
-        // reference white (D65)
-        float Xn = 0.95047f;
-        float Yn = 1.00000f;
-        float Zn = 1.08883f;
-
-        // convert LAB to XYZ
-        float fy = (L + 16f) / 116f;
-        float fx = A / 500f + fy;
-        float fz = fy - B / 200f;
-
-        float x = Xn * labInvF(fx);
-        float y = Yn * labInvF(fy);
-        float z = Zn * labInvF(fz);
-
-        // convert XYZ to RGB
-        float r =  3.2404542f * x - 1.5371385f * y - 0.4985314f * z;
-        float g = -0.9692660f * x + 1.8760108f * y + 0.0415560f * z;
-        float b =  0.0556434f * x - 0.2040259f * y + 1.0572252f * z;
-
-        // gamma correction
-        r = (r > 0.0031308f)
-                ? (1.055f * (float)Math.pow(r, 1f / 2.4f) - 0.055f)
-                : (12.92f * r);
-
-        g = (g > 0.0031308f)
-                ? (1.055f * (float)Math.pow(g, 1f / 2.4f) - 0.055f)
-                : (12.92f * g);
+    /** Final k-means inertia (sum of squared color distances to the assigned centroid). */
+    public double getInertia() {
+        return inertia;
+    }
 
-        b = (b > 0.0031308f)
-                ? (1.055f * (float)Math.pow(b, 1f / 2.4f) - 0.055f)
-                : (12.92f * b);
+    /**
+     * Relative inertia increase of the mini-batch result over full k-means, e.g. 0.02 for 2%.
+     * NaN unless both mini_batch and report_quality_gap were set.
+     */
+    public double getQualityGap() {
+        return quality_gap;
+    }
 
-        // clamp to [0, 255]
-        int red = Math.max(0, Math.min(255, Math.round(r * 255f)));
-        int green = Math.max(0, Math.min(255, Math.round(g * 255f)));
-        int blue = Math.max(0, Math.min(255, Math.round(b * 255f)));
+    /** What the time budget mode chose, or null without options.time_budget_ms. */
+    public AutoTuner.Tuning getTuning() {
+        return tuning;
+    }
 
-        return new int[]{red, green, blue};
+    /** Whether k-means was cut short by the time budget. */
+    public boolean reachedDeadline() {
+        return reached_deadline;
     }
 
-    private Bitmap cropToSquare(Bitmap source) {
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int size = Math.min(width, height);
+    /** Time spent in stage, in milliseconds; decoding happens before the processor and reads 0. */
+    public double getStageTime(Stage stage) {
+        return stage_nanos[stage.ordinal()] / 1e6;
+    }
 
-        int x_offset = (width - size) / 2;
-        int y_offset = (height - size) / 2;
+    public int[][] getColorGrid() {
+        if (puzzle == null) return null;
+        if (color_grid != null) return color_grid;
 
-        return Bitmap.createBitmap(source, x_offset, y_offset, size, size);
-    }
+        int size = puzzle.getSize();
+        color_grid = new int[size][size];
 
-    private Bitmap denoiseBilateral(Bitmap logical_image, int spatial_radius, int color_radius) {
-        int width = logical_image.getWidth();
-        int height = logical_image.getHeight();
-        int num_pixels = width * height;
-
-        Bitmap output_image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int curr_pixel = logical_image.getPixel(x, y);
-                int curr_red = (curr_pixel >> 16) & 0xFF;
-                int curr_green = (curr_pixel >> 8) & 0xFF;
-                int curr_blue = curr_pixel & 0xFF;
-
-                float total_weight = 0;
-                float weighted_sum_red = 0;
-                float weighted_sum_green = 0;
-                float weighted_sum_blue = 0;
-
-                for (int dx = -spatial_radius; dx <= spatial_radius; dx++) {
-                    for (int dy = -spatial_radius; dy <= spatial_radius; dy++) {
-                        if (x + dx < 0) continue;
-                        if (y + dy < 0) continue;
-                        if (x + dx >= width) continue;
-                        if (y + dy >= height) continue;
-
-                        int compare_pixel = logical_image.getPixel(x + dx, y + dy);
-                        int compare_red = (compare_pixel >> 16) & 0xFF;
-                        int compare_green = (compare_pixel >> 8) & 0xFF;
-                        int compare_blue = compare_pixel & 0xFF;
-
-                        int dist = (dx * dx) + (dy * dy);
-                        float spatial_weight = Math.max(0, 1 - (dist / (float) (spatial_radius * spatial_radius)));
-
-                        int dr = curr_red - compare_red;
-                        int dg = curr_green - compare_green;
-                        int db = curr_blue - compare_blue;
-
-                        int color_dist = (dr * dr) + (dg * dg) + (db * db);
-                        float color_weight = Math.max(0, 1 - (color_dist / (float) (color_radius * color_radius)));
-
-                        float combined_weight = spatial_weight * color_weight;
-                        total_weight += combined_weight;
-                        weighted_sum_red += combined_weight * compare_red;
-                        weighted_sum_green += combined_weight * compare_green;
-                        weighted_sum_blue += combined_weight * compare_blue;
-                    }
-                }
-                curr_red = (int) (weighted_sum_red / total_weight);
-                curr_green = (int) (weighted_sum_green / total_weight);
-                curr_blue = (int) (weighted_sum_blue / total_weight);
-
-                int new_color = (0xFF << 24) + (curr_red << 16) + (curr_green << 8) + (curr_blue);
-                output_image.setPixel(x, y, new_color);
+        for (int x = 0; x < size; x++){
+            for (int y = 0; y < size; y++){
+                color_grid[x][y] = puzzle.getColor(y, x);
             }
         }
-        return output_image;
+        return color_grid;
     }
 
-    private Bitmap kMeansPaletteReductionRGB(Bitmap logical_image, int num_colors) {
-        int width = logical_image.getWidth();
-        int height = logical_image.getHeight();
-        int num_pixels = width * height;
-
-        int[] pixels = new int[num_pixels];
-        logical_image.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        int[][] color_data = new int[num_pixels][3];
-        for (int i = 0; i < num_pixels; i++) {
-            int color = pixels[i];
-            color_data[i][0] = (color >> 16) & 0xFF; // red channel
-            color_data[i][1] = (color >> 8) & 0xFF; // green channel
-            color_data[i][2] = color & 0xFF; // blue channel
+    private void posterizeImage(int logical_size, int num_colors) {
+        long start = System.nanoTime();
+        int width = original_image.getWidth();
+        int height = original_image.getHeight();
+        int[] pixels = new int[width * height];
+        original_image.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        // the hierarchy is built from a run at its top level, which is what the tuner plans for
+        int cluster_colors = (options.hierarchy_min_colors > 0)
+                ? Math.max(num_colors, options.hierarchy_max_colors)
+                : num_colors;
+        if (options.time_budget_ms > 0) {
+            tuning = AutoTuner.tune(options, width, height, logical_size, cluster_colors, options.time_budget_ms);
+            options = tuning.options;
         }
-
-        int[][] clusters = new int[num_colors][3];
-        Random rand = new Random(314159265);
-        for (int k = 0; k < num_colors; k++) {
-            int random_color_index = rand.nextInt(num_pixels);
-            clusters[k] = color_data[random_color_index].clone();
+        // 0 when there is no budget, which KMeans reads as no deadline
+        long deadline = (tuning != null) ? start + options.time_budget_ms * 1_000_000L : 0;
+
+        int[] coarse_palette = null;
+        if (options.progressive && progress_listener != null) {
+            long stage_start = System.nanoTime();
+            coarse_palette = publishCoarsePuzzle(pixels, width, height, logical_size, cluster_colors);
+            coarse_nanos = System.nanoTime() - stage_start;
+            stage_nanos[Stage.CLUSTER.ordinal()] += coarse_nanos;
         }
 
-        int[] best_cluster_indexes = new int[num_pixels];
-        Arrays.fill(best_cluster_indexes, -1);
-
-        int max_iterations = 20;
-        boolean modified = true;
-        for (int iteration = 0; iteration < max_iterations && modified; iteration++) {
-            modified = false;
-
-            for (int i = 0; i < num_pixels; i++){
-                int min_distance = Integer.MAX_VALUE;
-                int best_cluster_index = 0;
-
-                for (int k = 0; k < num_colors; k++) {
-                    int delta_red = color_data[i][0] - clusters[k][0];
-                    int delta_green = color_data[i][1] - clusters[k][1];
-                    int delta_blue = color_data[i][2] - clusters[k][2];
-
-                    int current_distance =
-                            (delta_red * delta_red) +
-                                    (delta_green * delta_green) +
-                                    (delta_blue * delta_blue);
-
-                    if (current_distance < min_distance){
-                        min_distance = current_distance;
-                        best_cluster_index = k;
-                    }
-                }
-
-                if (best_cluster_indexes[i] != best_cluster_index) {
-                    best_cluster_indexes[i] = best_cluster_index;
-                    modified = true;
-                }
-            }
-
-            int[][] new_clusters = new int[num_colors][3];
-            int[] cluster_counts = new int[num_colors];
+        if (options.denoise) {
+            reportProgress(Stage.DENOISE, 0, 1);
+            long stage_start = System.nanoTime();
+            pixels = new BilateralFilter(options.denoise_spatial_radius, options.denoise_color_radius,
+                    options.num_workers).apply(pixels, width, height);
+            stage_nanos[Stage.DENOISE.ordinal()] += System.nanoTime() - stage_start;
+        }
 
-            for (int i = 0; i < num_pixels; i++) {
-                int k = best_cluster_indexes[i];
-                new_clusters[k][0] += color_data[i][0];
-                new_clusters[k][1] += color_data[i][1];
-                new_clusters[k][2] += color_data[i][2];
-                cluster_counts[k]++;
+        // crop to the center square and average down to the grid in one pass
+        reportProgress(Stage.DOWNSCALE, 0, 1);
+        long stage_start = System.nanoTime();
+        Quantizer quantizer = createQuantizer(options);
+        boolean lab = (quantizer instanceof KMeansQuantizer) && ((KMeansQuantizer) quantizer).usesLabData();
+        int[] logical_pixels = new int[logical_size * logical_size];
+        float[] lab_data = lab ? new float[logical_size * logical_size * 3] : null;
+        new Downscaler(options.num_workers).downscale(pixels, width, height, logical_size, logical_pixels, lab_data);
+        stage_nanos[Stage.DOWNSCALE.ordinal()] += System.nanoTime() - stage_start;
+
+        reportProgress(Stage.CLUSTER, 0, 1);
+        stage_start = System.nanoTime();
+        if (quantizer instanceof KMeansQuantizer) {
+            KMeansQuantizer k_means = (KMeansQuantizer) quantizer;
+            if (tuning != null) k_means.setDeadline(deadline);
+            if (progress_listener != null) {
+                k_means.setIterationListener((iteration, max_iterations) ->
+                        progress_listener.onProgress(Stage.CLUSTER, iteration, max_iterations));
             }
-
-            for (int k = 0; k < num_colors; k++) {
-                if (cluster_counts[k] > 0) {
-                    clusters[k][0] = new_clusters[k][0] / cluster_counts[k];
-                    clusters[k][1] = new_clusters[k][1] / cluster_counts[k];
-                    clusters[k][2] = new_clusters[k][2] / cluster_counts[k];
-                } else {
-                    int random_color_index = rand.nextInt(num_pixels);
-                    clusters[k] = color_data[random_color_index].clone();
-                }
+            if (coarse_palette != null) {
+                k_means.setInitialPalette(coarse_palette);
+                k_means.setIntermediateListener((palette, indexes) -> progress_listener.onIntermediateResult(
+                        Puzzle.fromAssignments(logical_size, palette, indexes)));
             }
         }
 
-        palette = new int[num_colors];
-        for (int k = 0; k < num_colors; k++) {
-            int red = (int) clusters[k][0];
-            int green = (int) clusters[k][1];
-            int blue = (int) clusters[k][2];
-            palette[k] = (0xFF << 24) + (red << 16) + (green << 8) + (blue);
+        reducePalette(logical_pixels, lab_data, logical_size, quantizer, cluster_colors);
+        if (hierarchy != null && cluster_colors > num_colors) {
+            puzzle = refine(logical_pixels, lab_data, logical_size, num_colors, deadline);
         }
-
-        int[] new_pixels = new int[num_pixels];
-        for (int i = 0; i < num_pixels; i++) {
-            new_pixels[i] = palette[best_cluster_indexes[i]];
+        posterized_image = buildPosterizedImage(puzzle);
+        stage_nanos[Stage.CLUSTER.ordinal()] += System.nanoTime() - stage_start;
+        if (tuning != null) {
+            AutoTuner.observe(options, width, height, logical_size, cluster_colors, iterations, stage_nanos,
+                    coarse_nanos, quantize_nanos);
         }
-
-        Bitmap color_reduced_image = Bitmap.createBitmap(width, height, logical_image.getConfig());
-        color_reduced_image.setPixels(new_pixels, 0, width, 0, 0, width, height);
-        return color_reduced_image;
     }
-    private Bitmap kMeansPaletteReductionLAB(Bitmap logical_image, int num_colors) {
-        int width = logical_image.getWidth();
-        int height = logical_image.getHeight();
-        int num_pixels = width * height;
-
-        int[] pixels = new int[num_pixels];
-        logical_image.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        float[][] color_data = new float[num_pixels][3];
-        for (int i = 0; i < num_pixels; i++) {
-            int color = pixels[i];
-            float[] lab = rgb2lab(
-                    (color >> 16) & 0xFF,
-                    (color >> 8) & 0xFF,
-                    color & 0xFF);
-            color_data[i][0] = lab[0];
-            color_data[i][1] = lab[1];
-            color_data[i][2] = lab[2];
-        }
-
-        float[][] clusters = new float[num_colors][3];
-        Random rand = new Random(314159265);
-        for (int k = 0; k < num_colors; k++) {
-            int random_color_index = rand.nextInt(num_pixels);
-            clusters[k] = color_data[random_color_index].clone();
-        }
-
-        int[] best_cluster_indexes = new int[num_pixels];
-        Arrays.fill(best_cluster_indexes, -1);
-
-        int max_iterations = 20;
-        boolean modified = true;
-        for (int iteration = 0; iteration < max_iterations && modified; iteration++) {
-            modified = false;
-
-            for (int i = 0; i < num_pixels; i++){
-                float min_distance = Float.MAX_VALUE;
-                int best_cluster_index = 0;
-
-                for (int k = 0; k < num_colors; k++) {
-                    float delta_L = color_data[i][0] - clusters[k][0];
-                    float delta_A = color_data[i][1] - clusters[k][1];
-                    float delta_B = color_data[i][2] - clusters[k][2];
-
-                    float current_distance =
-                            (delta_L * delta_L) +
-                                    (delta_A * delta_A) +
-                                    (delta_B * delta_B);
-
-                    if (current_distance < min_distance){
-                        min_distance = current_distance;
-                        best_cluster_index = k;
-                    }
-                }
-
-                if (best_cluster_indexes[i] != best_cluster_index) {
-                    best_cluster_indexes[i] = best_cluster_index;
-                    modified = true;
-                }
-            }
 
-            float[][] new_clusters = new float[num_colors][3];
-            int[] cluster_counts = new int[num_colors];
+    // one Wu pass on the undenoised image, published right away; returns its palette
+    private int[] publishCoarsePuzzle(int[] pixels, int width, int height, int logical_size, int num_colors) {
+        int[] coarse_pixels = new Downscaler(options.num_workers).downscale(pixels, width, height, logical_size);
+        int[] indexes = new int[coarse_pixels.length];
+        int[] palette = new WuQuantizer().quantize(coarse_pixels, num_colors, indexes);
+        progress_listener.onIntermediateResult(Puzzle.fromAssignments(logical_size, palette, indexes));
+        return palette;
+    }
 
-            for (int i = 0; i < num_pixels; i++) {
-                int k = best_cluster_indexes[i];
-                new_clusters[k][0] += color_data[i][0];
-                new_clusters[k][1] += color_data[i][1];
-                new_clusters[k][2] += color_data[i][2];
-                cluster_counts[k]++;
-            }
+    private void reportProgress(Stage stage, int step, int num_steps) {
+        if (progress_listener != null) progress_listener.onProgress(stage, step, num_steps);
+    }
 
-            for (int k = 0; k < num_colors; k++) {
-                if (cluster_counts[k] > 0) {
-                    clusters[k][0] = new_clusters[k][0] / cluster_counts[k];
-                    clusters[k][1] = new_clusters[k][1] / cluster_counts[k];
-                    clusters[k][2] = new_clusters[k][2] / cluster_counts[k];
-                } else {
-                    int random_color_index = rand.nextInt(num_pixels);
-                    clusters[k] = color_data[random_color_index].clone();
-                }
-            }
+    private void reducePalette(int[] pixels, float[] lab_data, int logical_size, Quantizer quantizer,
+                               int num_colors) {
+        int[] best_cluster_indexes = new int[pixels.length];
+        int[] palette;
+        long start = System.nanoTime();
+        if (quantizer instanceof KMeansQuantizer) {
+            palette = ((KMeansQuantizer) quantizer).quantize(pixels, lab_data, num_colors, best_cluster_indexes);
+        } else {
+            palette = quantizer.quantize(pixels, num_colors, best_cluster_indexes);
+        }
+        quantize_nanos = System.nanoTime() - start;
+        puzzle = Puzzle.fromAssignments(logical_size, palette, best_cluster_indexes);
+        if (options.hierarchy_min_colors > 0) {
+            hierarchy = new PaletteHierarchy(puzzle, options.hierarchy_min_colors);
         }
 
-        palette = new int[num_colors];
-        for (int k = 0; k < num_colors; k++) {
-            int[] rgb = lab2rgb(
-                    clusters[k][0],
-                    clusters[k][1],
-                    clusters[k][2]
-            );
-            int red = rgb[0];
-            int green = rgb[1];
-            int blue = rgb[2];
-            palette[k] = (0xFF << 24) + (red << 16) + (green << 8) + (blue);
+        if (quantizer instanceof KMeansQuantizer) {
+            KMeansQuantizer k_means = (KMeansQuantizer) quantizer;
+            iterations = k_means.getIterations();
+            inertia = k_means.getInertia();
+            quality_gap = k_means.getQualityGap();
+            reached_deadline = k_means.reachedDeadline();
         }
+    }
 
-        int[] new_pixels = new int[num_pixels];
-        for (int i = 0; i < num_pixels; i++) {
-            new_pixels[i] = palette[best_cluster_indexes[i]];
+    // clusters again at num_colors, for k-means starting from the hierarchy level of that size
+    private Puzzle refine(int[] pixels, float[] lab_data, int logical_size, int num_colors, long deadline) {
+        Quantizer quantizer = createQuantizer(options);
+        int[] indexes = new int[pixels.length];
+        int[] palette;
+        if (quantizer instanceof KMeansQuantizer) {
+            KMeansQuantizer k_means = (KMeansQuantizer) quantizer;
+            k_means.setInitialPalette(hierarchy.getPalette(num_colors));
+            k_means.setDeadline(deadline);
+            palette = k_means.quantize(pixels, lab_data, num_colors, indexes);
+            inertia = k_means.getInertia();
+            reached_deadline |= k_means.reachedDeadline();
+        } else {
+            palette = quantizer.quantize(pixels, num_colors, indexes);
         }
+        return Puzzle.fromAssignments(logical_size, palette, indexes);
+    }
+
+    private Bitmap buildPosterizedImage(Puzzle puzzle) {
+        int width = puzzle.getSize();
+        int height = puzzle.getSize();
+        int[] new_pixels = puzzle.toPixels();
 
-        Bitmap color_reduced_image = Bitmap.createBitmap(width, height, logical_image.getConfig());
+        Bitmap color_reduced_image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         color_reduced_image.setPixels(new_pixels, 0, width, 0, 0, width, height);
         return color_reduced_image;
     }
-}
\ No newline at end of file
+}
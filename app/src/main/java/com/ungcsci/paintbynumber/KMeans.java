@@ -0,0 +1,612 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means over three channel color data.
+ * <p>
+ * Points and centroids live in flat interleaved buffers ({c0, c1, c2, c0, c1, c2, ...})
+ * so the distance loop walks primitive arrays, and all scratch buffers are allocated
+ * once per run and reused by every iteration.
+ * <p>
+ * Pixels are split into fixed size chunks. Each chunk assigns its pixels and keeps its
+ * own partial sums and counts, and the partials are merged in chunk order at the end of
+ * every iteration. Because the chunking does not depend on the worker count, a run with
+ * any number of workers gives exactly the same centroids and assignments as a serial run.
+ * <p>
+ * Points may carry integer weights, e.g. pixel counts from a {@link ColorHistogram}, in
+ * which case each point counts as that many identical pixels.
+ * <p>
+ * Centroids are seeded at random, with k-means++ or with greedy k-means++, all driven by
+ * the seed so runs are reproducible, or supplied through {@link #setInitialCentroids}. The
+ * loop ends when no assignment changes, when no centroid moves further than the tolerance,
+ * or at the iteration cap. Empty clusters are re-seeded with the point furthest from its
+ * centroid.
+ * <p>
+ * The accelerated mode is Hamerly's algorithm: every point keeps an upper bound on the
+ * distance to its own centroid and a lower bound on the distance to any other centroid,
+ * and skips the K-way search whenever the bounds prove its assignment cannot change. The
+ * bounds carry a small slack for float rounding and partial sums are still rebuilt per
+ * chunk in point order, so centroids, assignments and iteration counts match the plain
+ * Lloyd loop exactly.
+ * <p>
+ * {@link #clusterMiniBatch} is Sculley's mini-batch k-means for very large inputs: the
+ * centroids learn from random batches with a per centroid learning rate of 1 / (points
+ * seen so far), followed by a single full assignment pass.
+ */
+public class KMeans {
+    public static final long DEFAULT_SEED = 314159265;
+    private static final int CHUNK_SIZE = 1024;
+    // absolute and relative margin kept between Hamerly bounds before a search is skipped
+    private static final double BOUND_SLACK = 1e-4;
+
+    public enum Seeding { RANDOM, KMEANS_PLUS_PLUS, GREEDY_KMEANS_PLUS_PLUS }
+
+    /** Called on the clustering thread after every pass; may throw to abort the run. */
+    public interface IterationListener {
+        void onIteration(int iteration, int max_iterations);
+    }
+
+    private final int num_workers;
+    private int max_iterations = 20;
+    private long seed = DEFAULT_SEED;
+    private Seeding seeding = Seeding.RANDOM;
+    private float tolerance = 0f;
+    private boolean accelerated = false;
+    private int batch_size = 1024;
+    private float[] initial_clusters;
+    private IterationListener iteration_listener;
+    private long deadline;
+
+    // statistics of the last run
+    private int iterations;
+    private double inertia;
+    private boolean reached_deadline;
+
+    public KMeans(int num_workers) {
+        this.num_workers = Math.max(1, num_workers);
+    }
+
+    public void setMaxIterations(int max_iterations) {
+        this.max_iterations = max_iterations;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setSeeding(Seeding seeding) {
+        this.seeding = seeding;
+    }
+
+    /** Stops once no centroid moves more than this distance in one iteration; 0 disables. */
+    public void setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /** Uses Hamerly bounds to skip distance computations; gives the same result as Lloyd. */
+    public void setAccelerated(boolean accelerated) {
+        this.accelerated = accelerated;
+    }
+
+    /** Points drawn per mini-batch step. */
+    public void setBatchSize(int batch_size) {
+        this.batch_size = Math.max(1, batch_size);
+    }
+
+    /**
+     * Starts from these centroids (interleaved) instead of seeding, e.g. modes from
+     * {@link MeanShift} or the result of an earlier run. Extra entries are ignored, and
+     * missing ones are seeded as usual given the supplied centroids. Null clears them.
+     */
+    public void setInitialCentroids(float[] initial_clusters) {
+        this.initial_clusters = initial_clusters;
+    }
+
+    public void setIterationListener(IterationListener iteration_listener) {
+        this.iteration_listener = iteration_listener;
+    }
+
+    /**
+     * Stops after the first pass (or mini-batch step) that ends past this
+     * {@link System#nanoTime()} value, keeping the centroids reached so far. 0 disables.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /** Number of assignment passes (or mini-batch steps) the last run made. */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /** Weighted sum of squared distances from each point to its final centroid in the last run. */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /** Whether the last run was cut short by the deadline. */
+    public boolean reachedDeadline() {
+        return reached_deadline;
+    }
+
+    public float[] cluster(float[] data, int num_colors, int[] assignments) {
+        return cluster(data, null, num_colors, assignments);
+    }
+
+    /**
+     * Clusters data into num_colors groups.
+     *
+     * @param data        interleaved {c0, c1, c2} triples, one per point
+     * @param weights     weight of each point, or null for all ones
+     * @param assignments receives the cluster index of every point
+     * @return the final centroids, interleaved like data
+     */
+    public float[] cluster(float[] data, int[] weights, int num_colors, int[] assignments) {
+        int num_pixels = data.length / 3;
+        if (num_pixels == 0) return emptyRun(num_colors);
+        int num_chunks = (num_pixels + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        int[] cumulative_weights = cumulativeOf(weights, num_pixels);
+
+        Random rand = new Random(seed);
+        float[] clusters = seedClusters(data, weights, num_colors, rand, cumulative_weights);
+
+        Arrays.fill(assignments, -1);
+
+        // per chunk partial sums and counts, flattened chunk-major and reused every iteration
+        double[] chunk_sums = new double[num_chunks * num_colors * 3];
+        int[] chunk_counts = new int[num_chunks * num_colors];
+        boolean[] chunk_modified = new boolean[num_chunks];
+        Bounds bounds = accelerated ? new Bounds(num_pixels, num_colors) : null;
+
+        float tolerance_squared = tolerance * tolerance;
+        iterations = 0;
+        reached_deadline = false;
+        boolean modified = true;
+        boolean converged = false;
+        for (int iteration = 0; iteration < max_iterations && modified && !converged; iteration++) {
+            iterations++;
+            if (bounds != null) bounds.updateCenterGaps(clusters);
+
+            Workers.run(num_workers, num_chunks, (start, end) -> {
+                for (int c = start; c < end; c++) {
+                    assignChunk(c, data, weights, clusters, assignments,
+                            chunk_sums, chunk_counts, chunk_modified, bounds);
+                }
+            });
+
+            modified = false;
+            for (int c = 0; c < num_chunks; c++) modified |= chunk_modified[c];
+
+            float max_shift = 0;
+            for (int k = 0; k < num_colors; k++) {
+                double sum_0 = 0;
+                double sum_1 = 0;
+                double sum_2 = 0;
+                int count = 0;
+                for (int c = 0; c < num_chunks; c++) {
+                    int offset = (c * num_colors + k) * 3;
+                    sum_0 += chunk_sums[offset];
+                    sum_1 += chunk_sums[offset + 1];
+                    sum_2 += chunk_sums[offset + 2];
+                    count += chunk_counts[c * num_colors + k];
+                }
+
+                if (count > 0) {
+                    float new_0 = (float) (sum_0 / count);
+                    float new_1 = (float) (sum_1 / count);
+                    float new_2 = (float) (sum_2 / count);
+                    float shift_0 = new_0 - clusters[k * 3];
+                    float shift_1 = new_1 - clusters[k * 3 + 1];
+                    float shift_2 = new_2 - clusters[k * 3 + 2];
+                    float shift = (shift_0 * shift_0) + (shift_1 * shift_1) + (shift_2 * shift_2);
+                    max_shift = Math.max(max_shift, shift);
+                    if (bounds != null) bounds.moves[k] = Math.sqrt(shift);
+                    clusters[k * 3] = new_0;
+                    clusters[k * 3 + 1] = new_1;
+                    clusters[k * 3 + 2] = new_2;
+                } else {
+                    int far_index = furthestPoint(data, clusters, assignments);
+                    if (bounds != null) {
+                        bounds.moves[k] = Math.sqrt(distance(data, far_index, clusters, k));
+                        bounds.upper[far_index] = 0;
+                        bounds.lower[far_index] = 0;
+                    }
+                    System.arraycopy(data, far_index * 3, clusters, k * 3, 3);
+                    assignments[far_index] = k;
+                    max_shift = Float.MAX_VALUE;
+                    modified = true;
+                }
+            }
+            converged = max_shift <= tolerance_squared;
+            if (bounds != null) bounds.updateMaxMoves();
+            if (iteration_listener != null) iteration_listener.onIteration(iterations, max_iterations);
+            if (!converged && pastDeadline()) break;
+        }
+
+        inertia = 0;
+        for (int i = 0; i < num_pixels; i++) {
+            int weight = (weights == null) ? 1 : weights[i];
+            inertia += weight * distance(data, i, clusters, assignments[i]);
+        }
+        return clusters;
+    }
+
+    /**
+     * Mini-batch k-means. Runs max_iterations batches of batch_size points drawn by weight,
+     * then assigns every point once. Seeding uses a random sample of three batches.
+     *
+     * @see #cluster(float[], int[], int, int[])
+     */
+    public float[] clusterMiniBatch(float[] data, int[] weights, int num_colors, int[] assignments) {
+        int num_points = data.length / 3;
+        if (num_points == 0) return emptyRun(num_colors);
+        int[] cumulative_weights = cumulativeOf(weights, num_points);
+        Random rand = new Random(seed);
+
+        // seed from a sample so seeding cost does not grow with the input
+        int init_size = Math.min(num_points, Math.max(num_colors, 3 * batch_size));
+        float[] init_data = new float[init_size * 3];
+        for (int s = 0; s < init_size; s++) {
+            int index = (init_size == num_points) ? s : randomPoint(rand, num_points, cumulative_weights);
+            System.arraycopy(data, index * 3, init_data, s * 3, 3);
+        }
+        float[] clusters = seedClusters(init_data, null, num_colors, rand, null);
+
+        double[] seen = new double[num_colors];
+        int[] batch = new int[batch_size];
+        int[] batch_clusters = new int[batch_size];
+
+        iterations = 0;
+        reached_deadline = false;
+        for (int step = 0; step < max_iterations; step++) {
+            iterations++;
+            for (int b = 0; b < batch_size; b++) {
+                // weights are already folded into the draw, so every sample counts once
+                batch[b] = randomPoint(rand, num_points, cumulative_weights);
+                batch_clusters[b] = nearest(data, batch[b], clusters);
+            }
+
+            for (int b = 0; b < batch_size; b++) {
+                int k = batch_clusters[b];
+                int i = batch[b];
+                seen[k] += 1;
+                float rate = (float) (1.0 / seen[k]);
+                for (int j = 0; j < 3; j++) {
+                    clusters[k * 3 + j] += rate * (data[i * 3 + j] - clusters[k * 3 + j]);
+                }
+            }
+            if (iteration_listener != null) iteration_listener.onIteration(iterations, max_iterations);
+            if (pastDeadline()) break;
+        }
+
+        inertia = 0;
+        for (int i = 0; i < num_points; i++) {
+            int weight = (weights == null) ? 1 : weights[i];
+            assignments[i] = nearest(data, i, clusters);
+            inertia += weight * distance(data, i, clusters, assignments[i]);
+        }
+        return clusters;
+    }
+
+    // nothing to cluster: the supplied centroids where there are any, zeros for the rest
+    private float[] emptyRun(int num_colors) {
+        iterations = 0;
+        inertia = 0;
+        reached_deadline = false;
+        float[] clusters = new float[num_colors * 3];
+        if (initial_clusters != null) {
+            System.arraycopy(initial_clusters, 0, clusters, 0, Math.min(num_colors, initial_clusters.length / 3) * 3);
+        }
+        return clusters;
+    }
+
+    private static int nearest(float[] data, int i, float[] clusters) {
+        int num_colors = clusters.length / 3;
+        float min_distance = Float.MAX_VALUE;
+        int best_cluster_index = 0;
+        for (int k = 0; k < num_colors; k++) {
+            float current_distance = distance(data, i, clusters, k);
+            if (current_distance < min_distance) {
+                min_distance = current_distance;
+                best_cluster_index = k;
+            }
+        }
+        return best_cluster_index;
+    }
+
+    private static float distance(float[] data, int i, float[] clusters, int k) {
+        float delta_0 = data[i * 3] - clusters[k * 3];
+        float delta_1 = data[i * 3 + 1] - clusters[k * 3 + 1];
+        float delta_2 = data[i * 3 + 2] - clusters[k * 3 + 2];
+        return (delta_0 * delta_0) + (delta_1 * delta_1) + (delta_2 * delta_2);
+    }
+
+    private boolean pastDeadline() {
+        if (deadline == 0 || System.nanoTime() - deadline < 0) return false;
+        reached_deadline = true;
+        return true;
+    }
+
+    private float[] seedClusters(float[] data, int[] weights, int num_colors, Random rand,
+                                 int[] cumulative_weights) {
+        float[] clusters = new float[num_colors * 3];
+        int num_fixed = 0;
+        if (initial_clusters != null) {
+            num_fixed = Math.min(num_colors, initial_clusters.length / 3);
+            System.arraycopy(initial_clusters, 0, clusters, 0, num_fixed * 3);
+        }
+        if (num_fixed == num_colors) return clusters;
+
+        if (seeding == Seeding.RANDOM) {
+            seedRandom(data, clusters, num_fixed, rand, cumulative_weights);
+        } else {
+            seedPlusPlus(data, weights, clusters, num_fixed, rand, seeding == Seeding.GREEDY_KMEANS_PLUS_PLUS);
+        }
+        return clusters;
+    }
+
+    private static void seedRandom(float[] data, float[] clusters, int num_fixed, Random rand,
+                                   int[] cumulative_weights) {
+        int num_colors = clusters.length / 3;
+        for (int k = num_fixed; k < num_colors; k++) {
+            int random_color_index = randomPoint(rand, data.length / 3, cumulative_weights);
+            System.arraycopy(data, random_color_index * 3, clusters, k * 3, 3);
+        }
+    }
+
+    /**
+     * k-means++ seeding: each new centroid is drawn with probability proportional to the
+     * weighted squared distance to the nearest centroid chosen so far. The greedy variant
+     * draws 2 + ln(k) candidates per step and keeps the one that lowers the total the most.
+     * The first num_fixed centroids are already in place and only the rest are drawn.
+     */
+    private static void seedPlusPlus(float[] data, int[] weights, float[] clusters, int num_fixed,
+                                     Random rand, boolean greedy) {
+        int num_points = data.length / 3;
+        int num_colors = clusters.length / 3;
+        int num_candidates = greedy ? 2 + (int) Math.log(num_colors) : 1;
+
+        // weighted squared distance of each point to its closest chosen centroid
+        double[] closest = new double[num_points];
+        double[] candidate_closest = new double[num_points];
+        double[] best_closest = new double[num_points];
+
+        if (num_fixed == 0) {
+            int first = randomPoint(rand, num_points, cumulativeOf(weights, num_points));
+            System.arraycopy(data, first * 3, clusters, 0, 3);
+            num_fixed = 1;
+        }
+        double potential = 0;
+        for (int i = 0; i < num_points; i++) {
+            float d = Float.MAX_VALUE;
+            for (int k = 0; k < num_fixed; k++) d = Math.min(d, distance(data, i, clusters, k));
+            closest[i] = ((weights == null) ? 1 : weights[i]) * d;
+            potential += closest[i];
+        }
+
+        for (int k = num_fixed; k < num_colors; k++) {
+            int best_candidate = -1;
+            double best_potential = Double.MAX_VALUE;
+
+            for (int t = 0; t < num_candidates; t++) {
+                int candidate = samplePoint(rand, closest, potential);
+                System.arraycopy(data, candidate * 3, clusters, k * 3, 3);
+
+                double candidate_potential = 0;
+                for (int i = 0; i < num_points; i++) {
+                    double d = ((weights == null) ? 1 : weights[i]) * distance(data, i, clusters, k);
+                    candidate_closest[i] = Math.min(closest[i], d);
+                    candidate_potential += candidate_closest[i];
+                }
+
+                if (candidate_potential < best_potential) {
+                    best_potential = candidate_potential;
+                    best_candidate = candidate;
+                    double[] swap = best_closest;
+                    best_closest = candidate_closest;
+                    candidate_closest = swap;
+                }
+            }
+
+            System.arraycopy(data, best_candidate * 3, clusters, k * 3, 3);
+            double[] swap = closest;
+            closest = best_closest;
+            best_closest = swap;
+            potential = best_potential;
+        }
+    }
+
+    private static int[] cumulativeOf(int[] weights, int num_points) {
+        if (weights == null) return null;
+        int[] cumulative_weights = new int[num_points];
+        int total = 0;
+        for (int i = 0; i < num_points; i++) {
+            total += weights[i];
+            cumulative_weights[i] = total;
+        }
+        return cumulative_weights;
+    }
+
+    // picks a point with probability proportional to its entry in scores
+    private static int samplePoint(Random rand, double[] scores, double total) {
+        if (total <= 0) return rand.nextInt(scores.length);
+        double target = rand.nextDouble() * total;
+        for (int i = 0; i < scores.length; i++) {
+            target -= scores[i];
+            if (target < 0) return i;
+        }
+        // rounding left a little over; take the last point with any weight
+        for (int i = scores.length - 1; i > 0; i--) {
+            if (scores[i] > 0) return i;
+        }
+        return 0;
+    }
+
+    // point with the largest squared distance to its assigned centroid
+    private static int furthestPoint(float[] data, float[] clusters, int[] assignments) {
+        int far_index = 0;
+        float far_distance = -1;
+        for (int i = 0; i < assignments.length; i++) {
+            float d = distance(data, i, clusters, assignments[i]);
+            if (d > far_distance) {
+                far_distance = d;
+                far_index = i;
+            }
+        }
+        return far_index;
+    }
+
+    // picks a point with probability proportional to its weight, uniformly if all weights are 0
+    private static int randomPoint(Random rand, int num_points, int[] cumulative_weights) {
+        if (cumulative_weights == null || cumulative_weights[num_points - 1] <= 0) return rand.nextInt(num_points);
+
+        int target = rand.nextInt(cumulative_weights[num_points - 1]);
+        int lo = 0;
+        int hi = num_points - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative_weights[mid] > target) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /** Per point Hamerly bounds plus the per centroid quantities they are updated from. */
+    private static class Bounds {
+        final double[] upper;
+        final double[] lower;
+        // half the distance from each centroid to its nearest other centroid
+        final double[] half_gaps;
+        // distance each centroid moved in the last update
+        final double[] moves;
+        double max_move;
+        double second_move;
+        int max_move_index = -1;
+
+        Bounds(int num_points, int num_colors) {
+            upper = new double[num_points];
+            lower = new double[num_points];
+            half_gaps = new double[num_colors];
+            moves = new double[num_colors];
+        }
+
+        void updateCenterGaps(float[] clusters) {
+            int num_colors = half_gaps.length;
+            Arrays.fill(half_gaps, Double.MAX_VALUE);
+            for (int j = 0; j < num_colors; j++) {
+                for (int k = j + 1; k < num_colors; k++) {
+                    double half = 0.5 * Math.sqrt(distance(clusters, j, clusters, k));
+                    half_gaps[j] = Math.min(half_gaps[j], half);
+                    half_gaps[k] = Math.min(half_gaps[k], half);
+                }
+            }
+        }
+
+        void updateMaxMoves() {
+            max_move = 0;
+            second_move = 0;
+            max_move_index = -1;
+            for (int k = 0; k < moves.length; k++) {
+                if (moves[k] > max_move) {
+                    second_move = max_move;
+                    max_move = moves[k];
+                    max_move_index = k;
+                } else if (moves[k] > second_move) {
+                    second_move = moves[k];
+                }
+            }
+        }
+
+        // true when the bound proves no other centroid can be at least as close
+        static boolean isSafe(double upper, double bound) {
+            return upper + BOUND_SLACK * (1 + upper) < bound;
+        }
+    }
+
+    private static void assignChunk(int chunk, float[] data, int[] weights, float[] clusters,
+                                    int[] assignments, double[] chunk_sums, int[] chunk_counts,
+                                    boolean[] chunk_modified, Bounds bounds) {
+        int num_colors = clusters.length / 3;
+        int start = chunk * CHUNK_SIZE;
+        int end = Math.min(data.length / 3, start + CHUNK_SIZE);
+
+        int sum_offset = chunk * num_colors * 3;
+        int count_offset = chunk * num_colors;
+        Arrays.fill(chunk_sums, sum_offset, sum_offset + num_colors * 3, 0);
+        Arrays.fill(chunk_counts, count_offset, count_offset + num_colors, 0);
+        boolean modified = false;
+
+        for (int i = start; i < end; i++) {
+            float color_0 = data[i * 3];
+            float color_1 = data[i * 3 + 1];
+            float color_2 = data[i * 3 + 2];
+            int weight = (weights == null) ? 1 : weights[i];
+
+            int assigned = assignments[i];
+            if (bounds != null && assigned >= 0) {
+                // shift the bounds by how far the centroids moved, then try to prove nothing changed
+                bounds.upper[i] += bounds.moves[assigned];
+                bounds.lower[i] -= (assigned == bounds.max_move_index) ? bounds.second_move : bounds.max_move;
+                double bound = Math.max(bounds.half_gaps[assigned], bounds.lower[i]);
+
+                boolean safe = Bounds.isSafe(bounds.upper[i], bound);
+                if (!safe) {
+                    bounds.upper[i] = Math.sqrt(distance(data, i, clusters, assigned));
+                    safe = Bounds.isSafe(bounds.upper[i], bound);
+                }
+
+                if (safe) {
+                    int offset = sum_offset + assigned * 3;
+                    chunk_sums[offset] += weight * color_0;
+                    chunk_sums[offset + 1] += weight * color_1;
+                    chunk_sums[offset + 2] += weight * color_2;
+                    chunk_counts[count_offset + assigned] += weight;
+                    continue;
+                }
+            }
+
+            float min_distance = Float.MAX_VALUE;
+            float second_distance = Float.MAX_VALUE;
+            int best_cluster_index = 0;
+
+            for (int k = 0; k < num_colors; k++) {
+                float delta_0 = color_0 - clusters[k * 3];
+                float delta_1 = color_1 - clusters[k * 3 + 1];
+                float delta_2 = color_2 - clusters[k * 3 + 2];
+
+                float current_distance =
+                        (delta_0 * delta_0) +
+                                (delta_1 * delta_1) +
+                                (delta_2 * delta_2);
+
+                if (current_distance < min_distance) {
+                    second_distance = min_distance;
+                    min_distance = current_distance;
+                    best_cluster_index = k;
+                } else if (current_distance < second_distance) {
+                    second_distance = current_distance;
+                }
+            }
+
+            if (bounds != null) {
+                bounds.upper[i] = Math.sqrt(min_distance);
+                bounds.lower[i] = Math.sqrt(second_distance);
+            }
+
+            if (assignments[i] != best_cluster_index) {
+                assignments[i] = best_cluster_index;
+                modified = true;
+            }
+
+            int offset = sum_offset + best_cluster_index * 3;
+            chunk_sums[offset] += weight * color_0;
+            chunk_sums[offset + 1] += weight * color_1;
+            chunk_sums[offset + 2] += weight * color_2;
+            chunk_counts[count_offset + best_cluster_index] += weight;
+        }
+        chunk_modified[chunk] = modified;
+    }
+}
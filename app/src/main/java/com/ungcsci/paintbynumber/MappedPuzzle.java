@@ -0,0 +1,125 @@
+package com.ungcsci.paintbynumber;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link PuzzleFormat} file mapped into memory. Cell indexes are read straight out of the
+ * mapping, so the grid is never copied onto the heap; packed grids are indexed directly and
+ * run-length encoded ones through a table of run ends. Opening walks the data once to check
+ * every index against the palette, so reads can trust them. {@link #toPuzzle} wraps the
+ * mapping in a {@link Puzzle} that reads through it.
+ */
+public class MappedPuzzle {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int bits;
+    private final int[] palette;
+    private final int data_offset;
+    // cell after the end of each run, only for run-length encoded files
+    private final int[] run_ends;
+
+    private MappedPuzzle(ByteBuffer buffer) throws IOException {
+        PuzzleFormat.checkHeader(buffer, buffer.capacity());
+        this.buffer = buffer;
+        this.size = buffer.getShort(8) & 0xFFFF;
+        this.bits = buffer.get(6);
+        int num_colors = buffer.getShort(10) & 0xFFFF;
+        int data_length = buffer.getInt(12);
+
+        palette = new int[num_colors];
+        for (int k = 0; k < num_colors; k++) palette[k] = buffer.getInt(PuzzleFormat.HEADER_SIZE + k * 4);
+        data_offset = PuzzleFormat.HEADER_SIZE + num_colors * 4;
+
+        int num_cells = size * size;
+        if ((buffer.get(5) & PuzzleFormat.FLAG_RLE) != 0) {
+            run_ends = new int[data_length / 2];
+            int cell = 0;
+            for (int r = 0; r < run_ends.length; r++) {
+                cell += (buffer.get(data_offset + r * 2) & 0xFF) + 1;
+                if (cell > num_cells) throw new IOException("Runs overflow the grid");
+                PuzzleFormat.checkIndex(buffer.get(data_offset + r * 2 + 1) & 0xFF, num_colors);
+                run_ends[r] = cell;
+            }
+            if (cell != num_cells) throw new IOException("Runs do not cover the grid");
+        } else {
+            run_ends = null;
+            for (int i = 0; i < num_cells; i++) PuzzleFormat.checkIndex(getIndex(i), num_colors);
+        }
+    }
+
+    /** Maps a whole file. */
+    public static MappedPuzzle open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return map(in.getChannel(), 0, in.length());
+        }
+    }
+
+    /**
+     * Maps length bytes at offset in an open file, e.g. an uncompressed asset from
+     * AssetManager.openFd. The caller keeps ownership of fd and may close it once this
+     * returns; the mapping outlives it.
+     */
+    public static MappedPuzzle open(FileDescriptor fd, long offset, long length) throws IOException {
+        // not closed here, closing the stream would close fd under its owner
+        return map(new FileInputStream(fd).getChannel(), offset, length);
+    }
+
+    private static MappedPuzzle map(FileChannel channel, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) throw new IOException("Puzzle file too large");
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return new MappedPuzzle(buffer);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getNumColors() {
+        return palette.length;
+    }
+
+    /** Opaque ARGB colors, sorted ascending. */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /** Palette index of a cell, in row-major order. */
+    public int getIndex(int cell) {
+        if (run_ends != null) {
+            int run = Arrays.binarySearch(run_ends, cell + 1);
+            if (run < 0) run = -run - 1;
+            return buffer.get(data_offset + run * 2 + 1) & 0xFF;
+        }
+        if (bits == 8) return buffer.get(data_offset + cell) & 0xFF;
+        int packed = buffer.get(data_offset + (cell >> 1));
+        return ((cell & 1) == 0 ? packed >> 4 : packed) & 0x0F;
+    }
+
+    /** Unpacks the whole grid, walking runs rather than searching them. */
+    byte[] unpackIndexes() {
+        byte[] indexes = new byte[size * size];
+        if (run_ends != null) {
+            int start = 0;
+            for (int r = 0; r < run_ends.length; r++) {
+                Arrays.fill(indexes, start, run_ends[r], buffer.get(data_offset + r * 2 + 1));
+                start = run_ends[r];
+            }
+        } else {
+            for (int i = 0; i < indexes.length; i++) indexes[i] = (byte) getIndex(i);
+        }
+        return indexes;
+    }
+
+    /** A puzzle that reads its cells through this mapping. */
+    public Puzzle toPuzzle() {
+        return new Puzzle(this);
+    }
+}
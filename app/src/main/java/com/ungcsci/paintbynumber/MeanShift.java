@@ -0,0 +1,198 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat kernel mean shift over three channel colors, accelerated with a uniform grid.
+ * <p>
+ * Points are first binned into cubic cells one bandwidth wide and each cell is reduced
+ * to its weighted centroid, so the work depends on the number of occupied cells rather
+ * than the number of pixels. Every cell centroid is then shifted to the weighted mean of
+ * the cell centroids within one bandwidth, found by looking only at the 27 neighbouring
+ * cells, until it stops moving. Converged points closer than half a bandwidth are merged
+ * into one mode, weighted by the points that reached it.
+ */
+public class MeanShift {
+    private static final int MAX_ITERATIONS = 50;
+
+    private final float bandwidth;
+
+    private float[] modes;
+    private int[] mode_weights;
+
+    public MeanShift(float bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /** Modes found by the last run, interleaved and sorted by weight, heaviest first. */
+    public float[] getModes() {
+        return modes;
+    }
+
+    /** Number of input points (by weight) that converged to each mode. */
+    public int[] getModeWeights() {
+        return mode_weights;
+    }
+
+    /** Number of modes holding at least min_fraction of the total weight. */
+    public int countSignificantModes(float min_fraction) {
+        long total = 0;
+        for (int w : mode_weights) total += w;
+        int count = 0;
+        for (int w : mode_weights) {
+            if (w >= min_fraction * total) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param data    interleaved {c0, c1, c2} triples
+     * @param weights weight of each point, or null for all ones
+     * @return the modes, as {@link #getModes()}
+     */
+    public float[] findModes(float[] data, int[] weights) {
+        int num_points = data.length / 3;
+
+        // bin into cells and reduce each cell to its weighted centroid
+        Map<Long, Integer> cell_lookup = new HashMap<>();
+        List<double[]> cell_sums = new ArrayList<>();
+        for (int i = 0; i < num_points; i++) {
+            long key = cellKey(data[i * 3], data[i * 3 + 1], data[i * 3 + 2]);
+            Integer cell = cell_lookup.get(key);
+            if (cell == null) {
+                cell = cell_sums.size();
+                cell_lookup.put(key, cell);
+                cell_sums.add(new double[4]);
+            }
+            int weight = (weights == null) ? 1 : weights[i];
+            double[] sum = cell_sums.get(cell);
+            sum[0] += weight * data[i * 3];
+            sum[1] += weight * data[i * 3 + 1];
+            sum[2] += weight * data[i * 3 + 2];
+            sum[3] += weight;
+        }
+
+        int num_cells = cell_sums.size();
+        float[] centroids = new float[num_cells * 3];
+        int[] cell_weights = new int[num_cells];
+        for (int c = 0; c < num_cells; c++) {
+            double[] sum = cell_sums.get(c);
+            centroids[c * 3] = (float) (sum[0] / sum[3]);
+            centroids[c * 3 + 1] = (float) (sum[1] / sum[3]);
+            centroids[c * 3 + 2] = (float) (sum[2] / sum[3]);
+            cell_weights[c] = (int) sum[3];
+        }
+
+        // cell index lists by grid key, built from the centroids so neighbours are exact
+        Map<Long, List<Integer>> grid = new HashMap<>();
+        for (int c = 0; c < num_cells; c++) {
+            long key = cellKey(centroids[c * 3], centroids[c * 3 + 1], centroids[c * 3 + 2]);
+            List<Integer> members = grid.get(key);
+            if (members == null) {
+                members = new ArrayList<>();
+                grid.put(key, members);
+            }
+            members.add(c);
+        }
+
+        float bandwidth_squared = bandwidth * bandwidth;
+        float stop_squared = (bandwidth * 1e-3f) * (bandwidth * 1e-3f);
+        List<float[]> found = new ArrayList<>();
+        List<int[]> found_weights = new ArrayList<>();
+
+        for (int c = 0; c < num_cells; c++) {
+            float p_0 = centroids[c * 3];
+            float p_1 = centroids[c * 3 + 1];
+            float p_2 = centroids[c * 3 + 2];
+
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+                double sum_0 = 0;
+                double sum_1 = 0;
+                double sum_2 = 0;
+                double total = 0;
+
+                int cell_0 = cellIndex(p_0);
+                int cell_1 = cellIndex(p_1);
+                int cell_2 = cellIndex(p_2);
+                for (int d0 = -1; d0 <= 1; d0++) {
+                    for (int d1 = -1; d1 <= 1; d1++) {
+                        for (int d2 = -1; d2 <= 1; d2++) {
+                            List<Integer> members = grid.get(pack(cell_0 + d0, cell_1 + d1, cell_2 + d2));
+                            if (members == null) continue;
+                            for (int m : members) {
+                                float delta_0 = centroids[m * 3] - p_0;
+                                float delta_1 = centroids[m * 3 + 1] - p_1;
+                                float delta_2 = centroids[m * 3 + 2] - p_2;
+                                if ((delta_0 * delta_0) + (delta_1 * delta_1) + (delta_2 * delta_2)
+                                        > bandwidth_squared) continue;
+                                int w = cell_weights[m];
+                                sum_0 += (double) w * centroids[m * 3];
+                                sum_1 += (double) w * centroids[m * 3 + 1];
+                                sum_2 += (double) w * centroids[m * 3 + 2];
+                                total += w;
+                            }
+                        }
+                    }
+                }
+
+                float next_0 = (float) (sum_0 / total);
+                float next_1 = (float) (sum_1 / total);
+                float next_2 = (float) (sum_2 / total);
+                float shift_0 = next_0 - p_0;
+                float shift_1 = next_1 - p_1;
+                float shift_2 = next_2 - p_2;
+                p_0 = next_0;
+                p_1 = next_1;
+                p_2 = next_2;
+                if ((shift_0 * shift_0) + (shift_1 * shift_1) + (shift_2 * shift_2) <= stop_squared) break;
+            }
+
+            // merge with an existing mode within half a bandwidth
+            boolean merged = false;
+            for (int f = 0; f < found.size() && !merged; f++) {
+                float[] mode = found.get(f);
+                float delta_0 = mode[0] - p_0;
+                float delta_1 = mode[1] - p_1;
+                float delta_2 = mode[2] - p_2;
+                if ((delta_0 * delta_0) + (delta_1 * delta_1) + (delta_2 * delta_2) <= bandwidth_squared / 4) {
+                    found_weights.get(f)[0] += cell_weights[c];
+                    merged = true;
+                }
+            }
+            if (!merged) {
+                found.add(new float[]{p_0, p_1, p_2});
+                found_weights.add(new int[]{cell_weights[c]});
+            }
+        }
+
+        // heaviest modes first
+        Integer[] order = new Integer[found.size()];
+        for (int f = 0; f < order.length; f++) order[f] = f;
+        Arrays.sort(order, (a, b) -> Integer.compare(found_weights.get(b)[0], found_weights.get(a)[0]));
+
+        modes = new float[order.length * 3];
+        mode_weights = new int[order.length];
+        for (int f = 0; f < order.length; f++) {
+            System.arraycopy(found.get(order[f]), 0, modes, f * 3, 3);
+            mode_weights[f] = found_weights.get(order[f])[0];
+        }
+        return modes;
+    }
+
+    private int cellIndex(float value) {
+        return (int) Math.floor(value / bandwidth);
+    }
+
+    private long cellKey(float c0, float c1, float c2) {
+        return pack(cellIndex(c0), cellIndex(c1), cellIndex(c2));
+    }
+
+    // 21 bits per axis, enough for any LAB or RGB value at bandwidths above 0.001
+    private static long pack(int c0, int c1, int c2) {
+        return ((long) (c0 & 0x1FFFFF) << 42) | ((long) (c1 & 0x1FFFFF) << 21) | (c2 & 0x1FFFFF);
+    }
+}
@@ -0,0 +1,139 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Heckbert's median cut over the exact color histogram. The box with the largest weighted
+ * squared error is split at the weighted median of its widest channel until there are
+ * num_colors boxes; each box's palette color is the weighted mean of its entries.
+ */
+public class MedianCutQuantizer implements Quantizer {
+
+    private static class Box {
+        final int start;
+        final int end;
+        double error;
+        int widest_channel;
+
+        Box(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private int[] colors;
+    private int[] weights;
+    // histogram entries, reordered as boxes are split
+    private int[] order;
+
+    @Override
+    public int[] quantize(int[] pixels, int num_colors, int[] indexes) {
+        ColorHistogram histogram = new ColorHistogram(pixels, 8);
+        colors = histogram.getColors();
+        weights = histogram.getWeights();
+        int num_entries = colors.length;
+
+        order = new int[num_entries];
+        for (int e = 0; e < num_entries; e++) order[e] = e;
+
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(measure(new Box(0, num_entries)));
+        long[] keys = new long[num_entries];
+
+        while (boxes.size() < num_colors) {
+            Box worst = null;
+            for (Box box : boxes) {
+                if (box.end - box.start > 1 && (worst == null || box.error > worst.error)) worst = box;
+            }
+            if (worst == null || worst.error <= 0) break;
+
+            // sort the box's entries along the widest channel
+            int shift = 16 - 8 * worst.widest_channel;
+            for (int e = worst.start; e < worst.end; e++) {
+                keys[e] = ((long) ((colors[order[e]] >> shift) & 0xFF) << 32) | order[e];
+            }
+            Arrays.sort(keys, worst.start, worst.end);
+            long total = 0;
+            for (int e = worst.start; e < worst.end; e++) {
+                order[e] = (int) keys[e];
+                total += weights[order[e]];
+            }
+
+            // first entry past the weighted median, keeping both halves non-empty
+            int split = worst.start + 1;
+            long running = weights[order[worst.start]];
+            while (split < worst.end - 1 && running * 2 < total) {
+                running += weights[order[split]];
+                split++;
+            }
+
+            boxes.remove(worst);
+            boxes.add(measure(new Box(worst.start, split)));
+            boxes.add(measure(new Box(split, worst.end)));
+        }
+
+        int[] palette = new int[boxes.size()];
+        int[] entry_indexes = new int[num_entries];
+        for (int k = 0; k < palette.length; k++) {
+            Box box = boxes.get(k);
+            long red = 0;
+            long green = 0;
+            long blue = 0;
+            long count = 0;
+            for (int e = box.start; e < box.end; e++) {
+                int entry = order[e];
+                int weight = weights[entry];
+                red += (long) weight * ((colors[entry] >> 16) & 0xFF);
+                green += (long) weight * ((colors[entry] >> 8) & 0xFF);
+                blue += (long) weight * (colors[entry] & 0xFF);
+                count += weight;
+                entry_indexes[entry] = k;
+            }
+            palette[k] = (0xFF << 24)
+                    | ((int) ((red + count / 2) / count) << 16)
+                    | ((int) ((green + count / 2) / count) << 8)
+                    | (int) ((blue + count / 2) / count);
+        }
+
+        int[] lookup = histogram.getLookup();
+        for (int i = 0; i < pixels.length; i++) {
+            indexes[i] = entry_indexes[lookup[i]];
+        }
+        return palette;
+    }
+
+    // fills in the weighted squared error and the channel with the largest range
+    private Box measure(Box box) {
+        double[] sum = new double[3];
+        double[] sum_squares = new double[3];
+        int[] min = {255, 255, 255};
+        int[] max = {0, 0, 0};
+        long count = 0;
+
+        for (int e = box.start; e < box.end; e++) {
+            int entry = order[e];
+            int weight = weights[entry];
+            count += weight;
+            for (int c = 0; c < 3; c++) {
+                int value = (colors[entry] >> (16 - 8 * c)) & 0xFF;
+                sum[c] += (double) weight * value;
+                sum_squares[c] += (double) weight * value * value;
+                min[c] = Math.min(min[c], value);
+                max[c] = Math.max(max[c], value);
+            }
+        }
+
+        box.error = 0;
+        int widest_range = -1;
+        for (int c = 0; c < 3; c++) {
+            box.error += sum_squares[c] - sum[c] * sum[c] / count;
+            if (max[c] - min[c] > widest_range) {
+                widest_range = max[c] - min[c];
+                box.widest_channel = c;
+            }
+        }
+        return box;
+    }
+}
@@ -0,0 +1,182 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gervautz-Purgathofer octree quantizer. Every pixel is inserted once into an RGB octree,
+ * then the least populated nodes on the deepest level are folded into their parents while
+ * that keeps at least num_colors leaves. The few leaves left over are merged pairwise by
+ * smallest increase in squared error. One pass over the pixels plus one lookup pass.
+ */
+public class OctreeQuantizer implements Quantizer {
+    // levels below the root; the lowest two bits of each channel are ignored
+    private static final int MAX_DEPTH = 6;
+
+    private static class Node {
+        Node[] children;
+        boolean leaf;
+        long red;
+        long green;
+        long blue;
+        int count;
+        int palette_index;
+    }
+
+    private int leaf_count;
+    private final List<List<Node>> reducible = new ArrayList<>();
+
+    @Override
+    public int[] quantize(int[] pixels, int num_colors, int[] indexes) {
+        leaf_count = 0;
+        reducible.clear();
+        for (int level = 0; level < MAX_DEPTH; level++) reducible.add(new ArrayList<>());
+
+        Node root = new Node();
+        for (int color : pixels) insert(root, color);
+
+        // fold the deepest level first; merging a node never changes the counts of its siblings,
+        // so each level only needs sorting once
+        for (int level = MAX_DEPTH - 1; level >= 0 && leaf_count > num_colors; level--) {
+            List<Node> nodes = reducible.get(level);
+            nodes.sort((a, b) -> Integer.compare(a.count, b.count));
+            for (int n = 0; n < nodes.size() && leaf_count > num_colors; n++) {
+                Node node = nodes.get(n);
+                if (node.leaf) continue;
+                int leaves_under = countLeaves(node);
+                if (leaf_count - (leaves_under - 1) >= num_colors) {
+                    node.children = null;
+                    node.leaf = true;
+                    leaf_count -= leaves_under - 1;
+                }
+            }
+        }
+
+        List<Node> leaves = new ArrayList<>();
+        collectLeaves(root, leaves);
+        int num_leaves = leaves.size();
+
+        // merge the remaining surplus leaves pairwise (Ward's criterion)
+        long[][] sums = new long[num_leaves][];
+        int[] target = new int[num_leaves];
+        for (int k = 0; k < num_leaves; k++) {
+            Node leaf = leaves.get(k);
+            sums[k] = new long[]{leaf.red, leaf.green, leaf.blue, leaf.count};
+            target[k] = k;
+        }
+        for (int remaining = num_leaves; remaining > num_colors; remaining--) {
+            int best_a = -1;
+            int best_b = -1;
+            double best_cost = Double.MAX_VALUE;
+            for (int a = 0; a < num_leaves; a++) {
+                if (sums[a] == null) continue;
+                for (int b = a + 1; b < num_leaves; b++) {
+                    if (sums[b] == null) continue;
+                    double cost = mergeCost(sums[a], sums[b]);
+                    if (cost < best_cost) {
+                        best_cost = cost;
+                        best_a = a;
+                        best_b = b;
+                    }
+                }
+            }
+            for (int c = 0; c < 4; c++) sums[best_a][c] += sums[best_b][c];
+            sums[best_b] = null;
+            for (int k = 0; k < num_leaves; k++) {
+                if (target[k] == best_b) target[k] = best_a;
+            }
+        }
+
+        int[] palette_of_leaf = new int[num_leaves];
+        int[] palette = new int[Math.min(num_leaves, num_colors)];
+        int num_palette = 0;
+        for (int k = 0; k < num_leaves; k++) {
+            if (sums[k] == null) continue;
+            long count = sums[k][3];
+            int red = (int) (sums[k][0] / count);
+            int green = (int) (sums[k][1] / count);
+            int blue = (int) (sums[k][2] / count);
+            palette_of_leaf[k] = num_palette;
+            palette[num_palette++] = (0xFF << 24) | (red << 16) | (green << 8) | blue;
+        }
+        for (int k = 0; k < num_leaves; k++) {
+            leaves.get(k).palette_index = palette_of_leaf[target[k]];
+        }
+
+        for (int i = 0; i < pixels.length; i++) {
+            indexes[i] = findLeaf(root, pixels[i]).palette_index;
+        }
+        return palette;
+    }
+
+    // increase in summed squared error from joining two clusters given as {red, green, blue, count} sums
+    private static double mergeCost(long[] a, long[] b) {
+        double count_a = a[3];
+        double count_b = b[3];
+        double distance = 0;
+        for (int c = 0; c < 3; c++) {
+            double delta = a[c] / count_a - b[c] / count_b;
+            distance += delta * delta;
+        }
+        return distance * count_a * count_b / (count_a + count_b);
+    }
+
+    private static int childIndex(int color, int level) {
+        int shift = 7 - level;
+        return (((color >> (16 + shift)) & 1) << 2)
+                | (((color >> (8 + shift)) & 1) << 1)
+                | ((color >> shift) & 1);
+    }
+
+    private void insert(Node root, int color) {
+        Node node = root;
+        for (int level = 0; ; level++) {
+            node.count++;
+            node.red += (color >> 16) & 0xFF;
+            node.green += (color >> 8) & 0xFF;
+            node.blue += color & 0xFF;
+
+            if (node.leaf) return;
+            if (level == MAX_DEPTH) {
+                node.leaf = true;
+                leaf_count++;
+                return;
+            }
+
+            if (node.children == null) {
+                node.children = new Node[8];
+                reducible.get(level).add(node);
+            }
+            int child = childIndex(color, level);
+            if (node.children[child] == null) node.children[child] = new Node();
+            node = node.children[child];
+        }
+    }
+
+    private static int countLeaves(Node node) {
+        if (node.leaf) return 1;
+        int leaves = 0;
+        for (Node child : node.children) {
+            if (child != null) leaves += countLeaves(child);
+        }
+        return leaves;
+    }
+
+    private static void collectLeaves(Node node, List<Node> leaves) {
+        if (node.leaf) {
+            leaves.add(node);
+            return;
+        }
+        for (Node child : node.children) {
+            if (child != null) collectLeaves(child, leaves);
+        }
+    }
+
+    private static Node findLeaf(Node root, int color) {
+        Node node = root;
+        for (int level = 0; !node.leaf; level++) {
+            node = node.children[childIndex(color, level)];
+        }
+        return node;
+    }
+}
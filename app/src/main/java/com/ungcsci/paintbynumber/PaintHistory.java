@@ -0,0 +1,123 @@
+package com.ungcsci.paintbynumber;
+
+/**
+ * Undo and redo for painting, grouped into strokes.
+ * <p>
+ * Each paint is two ints in a ring buffer: the cell index, with the top bit set on the
+ * first paint of a stroke, and the old and new color numbers packed together. The buffer
+ * doubles as needed up to {@link #MAX_OPERATIONS}; past that the oldest whole stroke is
+ * dropped to make room. Undone paints stay after the cursor for redo until a new paint
+ * replaces them.
+ */
+public class PaintHistory {
+    public static final int MAX_OPERATIONS = 1 << 18;
+    private static final int INITIAL_OPERATIONS = 256;
+    private static final int STROKE_START = 1 << 31;
+    private static final int COLOR_MASK = 0xFFFF;
+
+    /** Receives every cell an undo or redo changes, with its color number after the step. */
+    public interface Applier {
+        void apply(int cell, int color);
+    }
+
+    private int[] operations = new int[INITIAL_OPERATIONS * 2];
+    // ring slot of the oldest paint, paints stored, and paints currently applied
+    private int head, size, cursor;
+    private boolean starts_stroke = true;
+
+    /** The next paint recorded starts a new undo step. */
+    public void beginStroke() {
+        starts_stroke = true;
+    }
+
+    public void record(int cell, int old_color, int new_color) {
+        if (old_color == new_color) return;
+        if (cursor < size) {
+            // painting after an undo drops what could have been redone
+            size = cursor;
+            starts_stroke = true;
+        }
+
+        int capacity = operations.length / 2;
+        if (size == capacity) {
+            if (capacity < MAX_OPERATIONS) {
+                grow();
+            } else {
+                dropOldestStroke();
+            }
+        }
+
+        int slot = slot(size);
+        operations[slot] = starts_stroke ? cell | STROKE_START : cell;
+        operations[slot + 1] = (old_color << 16) | new_color;
+        size++;
+        cursor = size;
+        starts_stroke = false;
+    }
+
+    public boolean canUndo() {
+        return cursor > 0;
+    }
+
+    public boolean canRedo() {
+        return cursor < size;
+    }
+
+    /** Reverts the last stroke, newest paint first. Returns false if there was nothing to undo. */
+    public boolean undo(Applier applier) {
+        if (cursor == 0) return false;
+        int first;
+        do {
+            cursor--;
+            int slot = slot(cursor);
+            first = operations[slot];
+            applier.apply(first & ~STROKE_START, (operations[slot + 1] >>> 16) & COLOR_MASK);
+        } while (cursor > 0 && (first & STROKE_START) == 0);
+        starts_stroke = true;
+        return true;
+    }
+
+    /** Repaints the last undone stroke. Returns false if there was nothing to redo. */
+    public boolean redo(Applier applier) {
+        if (cursor == size) return false;
+        do {
+            int slot = slot(cursor);
+            applier.apply(operations[slot] & ~STROKE_START, operations[slot + 1] & COLOR_MASK);
+            cursor++;
+        } while (cursor < size && (operations[slot(cursor)] & STROKE_START) == 0);
+        starts_stroke = true;
+        return true;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        cursor = 0;
+        starts_stroke = true;
+    }
+
+    // index into operations of the i-th oldest paint
+    private int slot(int i) {
+        return ((head + i) & (operations.length / 2 - 1)) * 2;
+    }
+
+    private void grow() {
+        int[] grown = new int[operations.length * 2];
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i);
+            grown[i * 2] = operations[slot];
+            grown[i * 2 + 1] = operations[slot + 1];
+        }
+        operations = grown;
+        head = 0;
+    }
+
+    private void dropOldestStroke() {
+        int capacity = operations.length / 2;
+        do {
+            head = (head + 1) & (capacity - 1);
+            size--;
+            cursor--;
+        } while (size > 0 && (operations[slot(0)] & STROKE_START) == 0);
+    }
+}
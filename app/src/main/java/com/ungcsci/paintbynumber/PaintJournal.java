@@ -0,0 +1,367 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saved painting progress for one puzzle, kept as a snapshot of the paint grid plus a
+ * journal of the cells painted since.
+ * <p>
+ * Every paint is one int in the journal, the cell index shifted over the color number.
+ * {@link #record} only queues it; a background thread appends the queue in one write per
+ * {@link #FLUSH_DELAY_MS} and keeps its own copy of the grid. Once the journal holds as many
+ * bytes as a snapshot would, that copy is written as the new snapshot (temp file, fsync,
+ * rename) and the journal starts over. Both files carry a generation number, so a crash
+ * between the two steps leaves a journal the new snapshot already covers, which is then
+ * ignored. A torn record at the end of the journal is dropped on {@link #open}.
+ * <p>
+ * Games are keyed by the content of the puzzle they started from (base), so progress comes
+ * back whenever the same puzzle is generated, loaded from the cache or from the assets again,
+ * and color count changes during the game are stored with the progress. Only the
+ * {@link #MAX_GAMES} most recently played games are kept.
+ */
+public class PaintJournal {
+    private static final String TAG = "PaintJournal";
+
+    public static final int MAX_GAMES = 20;
+    public static final long FLUSH_DELAY_MS = 500;
+
+    private static final int SNAPSHOT_MAGIC = 0x50424e53;  // "PBNS"
+    private static final int JOURNAL_MAGIC = 0x50424e4a;   // "PBNJ"
+    private static final int VERSION = 1;
+    private static final int JOURNAL_HEADER = 16;
+    // color numbers go up to Puzzle.MAX_COLORS, 0 is unpainted
+    private static final int COLOR_BITS = 9;
+    private static final int MAX_CELLS = 1 << (31 - COLOR_BITS);
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    /** Progress read back by {@link #open}. */
+    public static class Progress {
+        public final int color_count;
+        // row-major color number of every cell, 0 where unpainted
+        public final int[] cells;
+
+        Progress(int color_count, int[] cells) {
+            this.color_count = color_count;
+            this.cells = cells;
+        }
+    }
+
+    private final File directory;
+    private final String key;
+    private final int num_cells;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    // queued on the UI thread, guarded by this
+    private int[] pending = new int[64];
+    private int num_pending;
+    private int[] pending_reset;
+    private int pending_reset_colors;
+    private boolean flush_scheduled;
+    private boolean closed;
+
+    // owned by the writer thread after open
+    private short[] cells;
+    private int color_count;
+    private long generation;
+    private int journal_records;
+    private DataOutputStream journal;
+
+    public PaintJournal(Context context, Puzzle base) {
+        this(new File(context.getFilesDir(), "games"), base);
+    }
+
+    public PaintJournal(File directory, Puzzle base) {
+        if (base.getSize() * base.getSize() > MAX_CELLS) throw new IllegalArgumentException("Grid too large to journal");
+        this.directory = directory;
+        this.key = keyFor(base);
+        this.num_cells = base.getSize() * base.getSize();
+    }
+
+    /** Name of the files for a game, from the size, palette and indexes of its starting puzzle. */
+    public static String keyFor(Puzzle base) {
+        MessageDigest digest = PuzzleCache.sha256();
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 * base.getNumColors());
+        header.putInt(base.getSize());
+        for (int color : base.getPalette()) header.putInt(color);
+        digest.update(header.array());
+        // the same bytes as the unpacked grid, a row at a time so a mapped puzzle stays mapped
+        int size = base.getSize();
+        byte[] row = new byte[size];
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < size; c++) row[c] = (byte) base.getIndex(r, c);
+            digest.update(row);
+        }
+        // half the digest is plenty to tell a few games apart
+        return PuzzleCache.toHex(Arrays.copyOf(digest.digest(), 16));
+    }
+
+    /**
+     * Reads back the saved progress, or returns null when there is none, and gets ready to
+     * record. color_count is what a new game starts with. Call once, before anything else.
+     */
+    public Progress open(int color_count) {
+        this.color_count = color_count;
+        cells = new short[num_cells];
+        boolean saved = readSnapshot();
+        boolean clean = readJournal();
+        saved |= journal_records > 0;
+
+        // start a clean journal when there was none or its tail could not be used
+        writer.execute(() -> {
+            if (!clean) compact();
+            trim();
+        });
+        if (!saved) return null;
+
+        int[] progress = new int[num_cells];
+        for (int i = 0; i < num_cells; i++) progress[i] = cells[i];
+        return new Progress(this.color_count, progress);
+    }
+
+    /** Queues a paint of color into cell; written within {@link #FLUSH_DELAY_MS}. */
+    public synchronized void record(int cell, int color) {
+        if (closed) return;
+        if (num_pending == pending.length) pending = Arrays.copyOf(pending, pending.length * 2);
+        pending[num_pending++] = (cell << COLOR_BITS) | color;
+        if (!flush_scheduled) {
+            flush_scheduled = true;
+            writer.schedule(this::writePending, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces the whole saved grid, e.g. after the color count changed and every cell was
+     * renumbered. Writes a snapshot right away.
+     */
+    public synchronized void reset(int color_count, int[][] grid) {
+        if (closed) return;
+        int size = grid.length;
+        int[] flat = new int[num_cells];
+        for (int r = 0; r < size; r++) System.arraycopy(grid[r], 0, flat, r * size, size);
+        // the grid already holds everything queued so far
+        num_pending = 0;
+        pending_reset = flat;
+        pending_reset_colors = color_count;
+        writer.execute(this::writePending);
+    }
+
+    /** Writes whatever is queued now rather than after the delay, e.g. when the game is paused. */
+    public synchronized void flush() {
+        if (closed) return;
+        writer.execute(this::writePending);
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread once it is done. Anything recorded
+     * after this is dropped.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        writer.execute(this::writePending);
+        writer.execute(this::closeJournal);
+        writer.shutdown();
+        closed = true;
+    }
+
+    // waits for the writer to finish after close(), for tests
+    boolean awaitClosed(long timeout_ms) throws InterruptedException {
+        return writer.awaitTermination(timeout_ms, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        int[] records;
+        int[] reset;
+        int reset_colors;
+        synchronized (this) {
+            records = Arrays.copyOf(pending, num_pending);
+            reset = pending_reset;
+            reset_colors = pending_reset_colors;
+            num_pending = 0;
+            pending_reset = null;
+            flush_scheduled = false;
+        }
+
+        if (reset != null) {
+            for (int i = 0; i < num_cells; i++) cells[i] = (short) reset[i];
+            color_count = reset_colors;
+            compact();
+        }
+        if (records.length == 0) return;
+
+        for (int record : records) cells[record >>> COLOR_BITS] = (short) (record & ((1 << COLOR_BITS) - 1));
+        if (journal == null || journal_records + records.length >= Math.max(MIN_COMPACT_RECORDS, num_cells / 2)) {
+            // a snapshot is now no bigger than the journal, or there is no journal to append to
+            compact();
+            return;
+        }
+        try {
+            ByteBuffer batch = ByteBuffer.allocate(records.length * 4);
+            batch.asIntBuffer().put(records);
+            // one write per batch; surviving a process kill needs no fsync here, the snapshot is fsynced
+            journal.write(batch.array());
+            journal.flush();
+            journal_records += records.length;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to append to the journal", e);
+            closeJournal();
+        }
+    }
+
+    // writes the grid as a snapshot of the next generation, then starts an empty journal for it
+    private void compact() {
+        closeJournal();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            File temp = File.createTempFile("snapshot", ".tmp", directory);
+            try {
+                try (FileOutputStream file_out = new FileOutputStream(temp)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out));
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(generation + 1);
+                    out.writeInt(num_cells);
+                    out.writeInt(color_count);
+                    for (short cell : cells) out.writeShort(cell);
+                    out.flush();
+                    file_out.getFD().sync();
+                }
+                if (!temp.renameTo(snapshotFile())) throw new IOException("Unable to rename " + temp);
+            } finally {
+                temp.delete();
+            }
+            generation++;
+
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile())));
+            journal.writeInt(JOURNAL_MAGIC);
+            journal.writeInt(VERSION);
+            journal.writeLong(generation);
+            journal.flush();
+            journal_records = 0;
+        } catch (IOException e) {
+            // progress is kept in memory and the next compaction tries again
+            Log.w(TAG, "Unable to write a snapshot", e);
+            closeJournal();
+        }
+    }
+
+    private boolean readSnapshot() {
+        File file = snapshotFile();
+        if (!file.isFile()) return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) throw new IOException("Not a snapshot");
+            long snapshot_generation = in.readLong();
+            int snapshot_cells = in.readInt();
+            int snapshot_colors = in.readInt();
+            if (snapshot_cells != num_cells || snapshot_colors <= 0 || snapshot_colors > Puzzle.MAX_COLORS) {
+                throw new IOException("Snapshot does not match the puzzle");
+            }
+            short[] snapshot = new short[num_cells];
+            for (int i = 0; i < num_cells; i++) {
+                snapshot[i] = in.readShort();
+                if (snapshot[i] < 0 || snapshot[i] > snapshot_colors) throw new IOException("Bad color in snapshot");
+            }
+            cells = snapshot;
+            color_count = snapshot_colors;
+            generation = snapshot_generation;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable snapshot " + file, e);
+            return false;
+        }
+    }
+
+    // replays the journal onto the snapshot, true if it can simply be appended to
+    private boolean readJournal() {
+        File file = journalFile();
+        if (!file.isFile()) return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) return false;
+            // an older generation is already part of the snapshot
+            if (in.readLong() != generation) return false;
+
+            long length = file.length() - JOURNAL_HEADER;
+            int count = (int) Math.min(Integer.MAX_VALUE, length / 4);
+            for (int i = 0; i < count; i++) {
+                int record = in.readInt();
+                int cell = record >>> COLOR_BITS;
+                int color = record & ((1 << COLOR_BITS) - 1);
+                if (cell >= num_cells || color > color_count) return false;
+                cells[cell] = (short) color;
+                journal_records++;
+            }
+            if (length % 4 != 0) return false;
+
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable journal " + file, e);
+            return false;
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close the journal", e);
+        }
+        journal = null;
+    }
+
+    // deletes the least recently played games past MAX_GAMES
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        Map<String, Long> last_played = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot < 0 || name.endsWith(".tmp")) continue;
+            last_played.merge(name.substring(0, dot), file.lastModified(), Math::max);
+        }
+        last_played.remove(key);
+        if (last_played.size() < MAX_GAMES) return;
+
+        String[] keys = last_played.keySet().toArray(new String[0]);
+        Arrays.sort(keys, (a, b) -> Long.compare(last_played.get(b), last_played.get(a)));
+        for (int i = MAX_GAMES - 1; i < keys.length; i++) {
+            new File(directory, keys[i] + ".snapshot").delete();
+            new File(directory, keys[i] + ".journal").delete();
+        }
+    }
+
+    private File snapshotFile() {
+        return new File(directory, key + ".snapshot");
+    }
+
+    private File journalFile() {
+        return new File(directory, key + ".journal");
+    }
+}
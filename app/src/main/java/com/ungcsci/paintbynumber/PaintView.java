@@ -26,6 +26,7 @@ public class PaintView extends View {
     private boolean showNumbers = true;
     private boolean isComplete = false;
     private boolean showCompletionOverlay = false;
+    private boolean locked = false;
 
     //drawing
     private Paint paint, textPaint, borderPaint, overlayPaint, paletteBackgroundPaint;
@@ -38,7 +39,7 @@ public class PaintView extends View {
 
     //buttons
     private Button admireButton, mainMenuButton, shareButton;
-    private ImageButton drawModeButton, zoomModeButton;
+    private ImageButton drawModeButton, zoomModeButton, undoButton, redoButton;
 
     //mode enum
     private enum Mode { DRAW, ZOOM }
@@ -58,8 +59,14 @@ public class PaintView extends View {
     private int grid_size;
     private int[] colorPalette;
     private int[][] numberGrid, userPaintGrid;
+    private Puzzle startPuzzle;
+    private PaletteHierarchy hierarchy;
+    private PaintJournal journal;
     public Bitmap finished_image;
 
+    //undo & redo
+    private final PaintHistory history = new PaintHistory();
+
     public PaintView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -110,28 +117,97 @@ public class PaintView extends View {
         });
     }
 
-    public void loadImageData(int size, int[] palette, int[][] grid, Bitmap posterized_image){
-        grid_size = size;
+    public void loadPuzzle(Puzzle puzzle, Bitmap posterized_image){
+        grid_size = puzzle.getSize();
         numberGrid = new int[grid_size][grid_size];
         userPaintGrid = new int[grid_size][grid_size];
+        int[] palette = puzzle.getPalette();
         colorPalette = new int[palette.length + 1];
         colorPalette[0] = 0xFFFFFFFF;
         System.arraycopy(palette, 0, colorPalette, 1, palette.length);
 
+        //palette numbers shown to the player start at 1
         for (int r = 0; r < grid_size; r++) {
             for (int c = 0; c < grid_size; c++) {
-                int color = grid[r][c];
-                int paletteIndex = -1;
-                for (int i = 0; i < palette.length; i++) {
-                    if (palette[i] == color) {
-                        paletteIndex = i;
-                        break;
-                    }
-                }
-                numberGrid[c][r] = paletteIndex + 1;
+                numberGrid[r][c] = puzzle.getIndex(r, c) + 1;
             }
         }
         finished_image = posterized_image;
+        startPuzzle = puzzle;
+        hierarchy = null;
+        journal = null;
+        history.clear();
+        updateHistoryButtons();
+    }
+
+    //a puzzle whose color count can be changed mid-game through the hierarchy
+    public void loadPuzzle(Puzzle puzzle, Bitmap posterized_image, PaletteHierarchy hierarchy) {
+        loadPuzzle(puzzle, posterized_image);
+        this.hierarchy = hierarchy;
+    }
+
+    public int getColorCount() {
+        return colorPalette == null ? 0 : colorPalette.length - 1;
+    }
+
+    //switches to the hierarchy level, or back to the starting puzzle at its own count
+    //cells painted correctly stay painted and the rest are cleared
+    public void setColorCount(int colorCount) {
+        if (hierarchy == null || colorCount == getColorCount()) return;
+
+        Puzzle target = (colorCount == startPuzzle.getNumColors()) ? startPuzzle : hierarchy.getPuzzle(colorCount);
+        for (int r = 0; r < grid_size; r++) {
+            for (int c = 0; c < grid_size; c++) {
+                int number = target.getIndex(r, c) + 1;
+                boolean painted = userPaintGrid[r][c] != 0 && userPaintGrid[r][c] == numberGrid[r][c];
+                userPaintGrid[r][c] = painted ? number : 0;
+                numberGrid[r][c] = number;
+            }
+        }
+
+        int[] palette = target.getPalette();
+        colorPalette = new int[palette.length + 1];
+        colorPalette[0] = 0xFFFFFFFF;
+        System.arraycopy(palette, 0, colorPalette, 1, palette.length);
+        selectedColorNumber = Math.min(selectedColorNumber, colorCount);
+        finished_image = renderPuzzle(target);
+        if (journal != null) journal.reset(colorCount, userPaintGrid);
+        //the history holds color numbers of the old count
+        history.clear();
+        updateHistoryButtons();
+
+        checkForCompletion();
+        invalidate();
+    }
+
+    private static Bitmap renderPuzzle(Puzzle puzzle) {
+        int size = puzzle.getSize();
+        Bitmap image = Bitmap.createBitmap(puzzle.toPixels(), size, size, Bitmap.Config.ARGB_8888);
+        return Bitmap.createScaledBitmap(image, PuzzleGenerator.DISPLAY_SIZE, PuzzleGenerator.DISPLAY_SIZE, false);
+    }
+
+    //paints made from now on are recorded in journal
+    public void setJournal(PaintJournal journal) {
+        this.journal = journal;
+    }
+
+    //puts back progress read from a journal, cells are row-major color numbers
+    public void restorePaint(int[] cells) {
+        for (int r = 0; r < grid_size; r++) {
+            for (int c = 0; c < grid_size; c++) {
+                int number = cells[r * grid_size + c];
+                userPaintGrid[r][c] = number < colorPalette.length ? number : 0;
+            }
+        }
+        history.clear();
+        updateHistoryButtons();
+        checkForCompletion();
+        invalidate();
+    }
+
+    //a locked view can still be zoomed and panned but not painted, e.g. while a coarse puzzle is refined
+    public void setLocked(boolean locked) {
+        this.locked = locked;
     }
 
     private void updatePanLimits() {
@@ -370,6 +446,9 @@ public class PaintView extends View {
         }
 
         //DRAW MODE
+        if (locked) return true;
+        //everything painted until the finger lifts is undone together
+        if (action == MotionEvent.ACTION_DOWN) history.beginStroke();
         float rawX = event.getX();
         float rawY = event.getY();
 
@@ -425,15 +504,53 @@ public class PaintView extends View {
 
         if (row >= 0 && row < grid_size && col >= 0 && col < grid_size) {
             if (userPaintGrid[row][col] != selectedColorNumber) {
+                history.record(row * grid_size + col, userPaintGrid[row][col], selectedColorNumber);
                 userPaintGrid[row][col] = selectedColorNumber;
+                if (journal != null) journal.record(row * grid_size + col, selectedColorNumber);
                 checkForCompletion();
                 invalidate();
+                updateHistoryButtons();
             }
         }
 
         return true;
     }
 
+    public void undo() {
+        if (locked) return;
+        if (history.undo(this::applyHistory)) finishHistoryStep();
+    }
+
+    public void redo() {
+        if (locked) return;
+        if (history.redo(this::applyHistory)) finishHistoryStep();
+    }
+
+    private void applyHistory(int cell, int color) {
+        int row = cell / grid_size;
+        int col = cell % grid_size;
+        userPaintGrid[row][col] = color;
+        if (journal != null) journal.record(cell, color);
+    }
+
+    private void finishHistoryStep() {
+        checkForCompletion();
+        updateHistoryButtons();
+        //a full redraw, as hardware acceleration ignores dirty rects (invalidate(Rect) is deprecated)
+        invalidate();
+    }
+
+    private void updateHistoryButtons() {
+        if (undoButton != null) {
+            undoButton.setEnabled(history.canUndo());
+            undoButton.setAlpha(history.canUndo() ? 1f : 0.5f);
+        }
+        if (redoButton != null) {
+            redoButton.setEnabled(history.canRedo());
+            redoButton.setAlpha(history.canRedo() ? 1f : 0.5f);
+        }
+    }
+
     private void checkForCompletion() {
         for (int r = 0; r < grid_size; r++) {
             for (int c = 0; c < grid_size; c++) {
@@ -539,6 +656,18 @@ public class PaintView extends View {
         });
     }
 
+    public void setUndoButton(ImageButton b) {
+        undoButton = b;
+        undoButton.setOnClickListener(v -> undo());
+        updateHistoryButtons();
+    }
+
+    public void setRedoButton(ImageButton b) {
+        redoButton = b;
+        redoButton.setOnClickListener(v -> redo());
+        updateHistoryButtons();
+    }
+
     public void setZoomModeButton(ImageButton b) {
         zoomModeButton = b;
         zoomModeButton.setOnClickListener(v -> {
@@ -0,0 +1,143 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * Coarser versions of a puzzle, from its own color count down to min_colors.
+ * <p>
+ * The palette is merged one pair at a time, always the pair whose union adds the least
+ * squared LAB error (Ward cost, weighted by cell counts), and the merged color is the
+ * weighted mean. The resulting merge tree is kept flattened as one mapping per level from
+ * base palette index to level palette index, so switching levels is a lookup per cell and
+ * never re-clusters. Level palettes are sorted like {@link Puzzle#fromAssignments}.
+ */
+public class PaletteHierarchy {
+    private final Puzzle base;
+    private final int min_colors;
+    // indexed by num_colors - min_colors
+    private final int[][] mappings;
+    private final int[][] palettes;
+
+    public PaletteHierarchy(Puzzle base, int min_colors) {
+        int max_colors = base.getNumColors();
+        this.base = base;
+        this.min_colors = Math.max(1, Math.min(min_colors, max_colors));
+        mappings = new int[max_colors - this.min_colors + 1][];
+        palettes = new int[max_colors - this.min_colors + 1][];
+
+        int[] colors = base.getPalette().clone();
+        float[] lab = new float[max_colors * 3];
+        for (int k = 0; k < max_colors; k++) {
+            LabConverter.rgb2lab(colors[k], lab, k * 3);
+        }
+        double[] weights = new double[max_colors];
+        int num_cells = base.getSize() * base.getSize();
+        for (int i = 0; i < num_cells; i++) {
+            weights[base.getIndex(i)]++;
+        }
+
+        // current cluster of every base color, clusters packed at the front
+        int[] cluster = new int[max_colors];
+        for (int k = 0; k < max_colors; k++) cluster[k] = k;
+
+        int size = max_colors;
+        storeLevel(size, colors, cluster);
+        while (size > this.min_colors) {
+            int best_a = 0;
+            int best_b = 1;
+            double best_cost = Double.MAX_VALUE;
+            for (int a = 0; a < size; a++) {
+                for (int b = a + 1; b < size; b++) {
+                    double d = 0;
+                    for (int j = 0; j < 3; j++) {
+                        double delta = lab[a * 3 + j] - lab[b * 3 + j];
+                        d += delta * delta;
+                    }
+                    double total = weights[a] + weights[b];
+                    double cost = (total > 0) ? (weights[a] * weights[b] / total) * d : d;
+                    if (cost < best_cost) {
+                        best_cost = cost;
+                        best_a = a;
+                        best_b = b;
+                    }
+                }
+            }
+
+            double total = weights[best_a] + weights[best_b];
+            double share_a = (total > 0) ? weights[best_a] / total : 0.5;
+            for (int j = 0; j < 3; j++) {
+                lab[best_a * 3 + j] = (float) (share_a * lab[best_a * 3 + j] + (1 - share_a) * lab[best_b * 3 + j]);
+            }
+            weights[best_a] = total;
+            colors[best_a] = LabConverter.lab2rgb(lab[best_a * 3], lab[best_a * 3 + 1], lab[best_a * 3 + 2]);
+
+            // move the last cluster into the freed slot
+            size--;
+            System.arraycopy(lab, size * 3, lab, best_b * 3, 3);
+            weights[best_b] = weights[size];
+            colors[best_b] = colors[size];
+            for (int k = 0; k < max_colors; k++) {
+                if (cluster[k] == best_b) cluster[k] = best_a;
+                if (cluster[k] == size) cluster[k] = best_b;
+            }
+            storeLevel(size, colors, cluster);
+        }
+    }
+
+    public Puzzle getBase() {
+        return base;
+    }
+
+    public int getMinColors() {
+        return min_colors;
+    }
+
+    public int getMaxColors() {
+        return base.getNumColors();
+    }
+
+    /** Level palette index of every base palette index. */
+    public int[] getMapping(int num_colors) {
+        return mappings[level(num_colors)];
+    }
+
+    public int[] getPalette(int num_colors) {
+        return palettes[level(num_colors)];
+    }
+
+    /** The base puzzle remapped to num_colors, one lookup per cell. */
+    public Puzzle getPuzzle(int num_colors) {
+        int[] mapping = getMapping(num_colors);
+        byte[] indexes = new byte[base.getSize() * base.getSize()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = (byte) mapping[base.getIndex(i)];
+        }
+        return new Puzzle(base.getSize(), getPalette(num_colors), indexes);
+    }
+
+    private int level(int num_colors) {
+        if (num_colors < min_colors || num_colors > getMaxColors()) {
+            throw new IllegalArgumentException("No level with " + num_colors + " colors");
+        }
+        return num_colors - min_colors;
+    }
+
+    private void storeLevel(int size, int[] colors, int[] cluster) {
+        Integer[] order = new Integer[size];
+        for (int k = 0; k < size; k++) order[k] = k;
+        Arrays.sort(order, (a, b) -> Integer.compare(colors[a], colors[b]));
+
+        int[] palette = new int[size];
+        int[] rank = new int[size];
+        for (int k = 0; k < size; k++) {
+            palette[k] = colors[order[k]];
+            rank[order[k]] = k;
+        }
+        int[] mapping = new int[cluster.length];
+        for (int k = 0; k < cluster.length; k++) {
+            mapping[k] = rank[cluster[k]];
+        }
+        mappings[size - min_colors] = mapping;
+        palettes[size - min_colors] = palette;
+    }
+}
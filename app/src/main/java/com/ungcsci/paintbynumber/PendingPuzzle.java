@@ -0,0 +1,182 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A puzzle being generated ahead of time, e.g. while the game options dialog is open.
+ * <p>
+ * Generation makes the puzzle for the chosen grid size and color count, the one the dialog
+ * previews, together with a {@link PaletteHierarchy} spanning every color count offered so
+ * the count can still change during the game. {@link #update} restarts generation for new
+ * settings after a short debounce and cancels the stale job right away. When the player
+ * starts the game, {@link #handOff} registers the generation under an id that travels in
+ * the intent, and the game screen {@link #claim}s it and {@link #attach}es a listener, which
+ * first receives everything that already happened. If the settings no longer match, handOff
+ * restarts with the final ones instead. All methods must be called on the main thread.
+ */
+public class PendingPuzzle {
+    public static final String EXTRA_HANDOFF_ID = "com.ungcsci.paintbynumber.handoff_id";
+    private static final long DEBOUNCE_MS = 300;
+    // generation is tuned to finish within this on slow devices
+    private static final long TIME_BUDGET_MS = 1500;
+
+    // generations handed off to a game screen that has not claimed them yet
+    private static final Map<String, PendingPuzzle> HANDOFFS = new HashMap<>();
+
+    private final PuzzleGenerator generator;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Uri image_uri;
+    private final int image_id;
+    private final int min_colors;
+    private final int max_colors;
+    private final Runnable start_job = this::startJob;
+
+    private int grid_size = -1;
+    private int color_count = -1;
+    private boolean start_pending;
+    private PuzzleGenerator.Job job;
+    private PuzzleGenerator.Listener listener;
+
+    // what the current job has produced so far, replayed to a late listener
+    private ImageProcessor.Stage stage;
+    private int step;
+    private int num_steps;
+    private Puzzle intermediate;
+    private Puzzle puzzle;
+    private PaletteHierarchy hierarchy;
+    private Bitmap posterized_image;
+    private Exception error;
+
+    /** Generation for image_uri, or for the drawable image_id when the uri is null. */
+    public PendingPuzzle(Context context, Uri image_uri, int image_id) {
+        this.generator = new PuzzleGenerator(context);
+        this.image_uri = image_uri;
+        this.image_id = image_id;
+
+        int[] color_counts = context.getResources().getIntArray(R.array.color_counts);
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int count : color_counts) {
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        min_colors = min;
+        max_colors = max;
+    }
+
+    /** Starts generating right away. */
+    public void start(int grid_size, int color_count) {
+        this.grid_size = grid_size;
+        this.color_count = color_count;
+        startJob();
+    }
+
+    /** Restarts for new settings once they have been stable for a moment. */
+    public void update(int grid_size, int color_count) {
+        if (grid_size == this.grid_size && color_count == this.color_count) return;
+        this.grid_size = grid_size;
+        this.color_count = color_count;
+
+        if (job != null) job.cancel();
+        job = null;
+        handler.removeCallbacks(start_job);
+        handler.postDelayed(start_job, DEBOUNCE_MS);
+        start_pending = true;
+    }
+
+    /**
+     * Makes this generation claimable by the game screen and returns the id to pass as
+     * {@link #EXTRA_HANDOFF_ID}.
+     */
+    public String handOff(int grid_size, int color_count) {
+        if (start_pending || job == null || grid_size != this.grid_size || color_count != this.color_count) {
+            start(grid_size, color_count);
+        }
+        String id = UUID.randomUUID().toString();
+        HANDOFFS.put(id, this);
+        return id;
+    }
+
+    /** Takes a handed off generation, or returns null if there is none (e.g. after a restart). */
+    public static PendingPuzzle claim(String id) {
+        if (id == null) return null;
+        return HANDOFFS.remove(id);
+    }
+
+    /** Delivers what already happened, then forwards the rest as it arrives. */
+    public void attach(PuzzleGenerator.Listener listener) {
+        this.listener = listener;
+        if (stage != null) listener.onProgress(stage, step, num_steps);
+        if (intermediate != null && puzzle == null) listener.onIntermediate(intermediate);
+        if (puzzle != null) listener.onComplete(puzzle, hierarchy, posterized_image);
+        if (error != null) listener.onError(error);
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(start_job);
+        start_pending = false;
+        if (job != null) job.cancel();
+        job = null;
+        listener = null;
+    }
+
+    private void startJob() {
+        handler.removeCallbacks(start_job);
+        start_pending = false;
+        if (job != null) job.cancel();
+
+        stage = null;
+        intermediate = null;
+        puzzle = null;
+        hierarchy = null;
+        posterized_image = null;
+        error = null;
+        // progressive, so a coarse puzzle can be shown while k-means refines it
+        ImageProcessor.Options options = new ImageProcessor.Options();
+        options.progressive = true;
+        options.hierarchy_min_colors = min_colors;
+        options.hierarchy_max_colors = max_colors;
+        options.time_budget_ms = TIME_BUDGET_MS;
+        job = generator.generate(image_uri, image_id, grid_size, color_count, options,
+                new PuzzleGenerator.Listener() {
+                    @Override
+                    public void onProgress(ImageProcessor.Stage new_stage, int new_step, int new_num_steps) {
+                        stage = new_stage;
+                        step = new_step;
+                        num_steps = new_num_steps;
+                        if (listener != null) listener.onProgress(new_stage, new_step, new_num_steps);
+                    }
+
+                    @Override
+                    public void onIntermediate(Puzzle new_intermediate) {
+                        intermediate = new_intermediate;
+                        if (listener != null) listener.onIntermediate(new_intermediate);
+                    }
+
+                    @Override
+                    public void onComplete(Puzzle new_puzzle, PaletteHierarchy new_hierarchy,
+                                           Bitmap new_posterized_image) {
+                        puzzle = new_puzzle;
+                        hierarchy = new_hierarchy;
+                        posterized_image = new_posterized_image;
+                        if (listener != null) {
+                            listener.onComplete(new_puzzle, new_hierarchy, new_posterized_image);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error = e;
+                        if (listener != null) listener.onError(e);
+                    }
+                });
+    }
+}
@@ -2,10 +2,8 @@ package com.ungcsci.paintbynumber;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.widget.ImageView;
 import androidx.appcompat.app.AppCompatActivity;
 
@@ -25,16 +23,16 @@ public class PreviewImageActivity extends AppCompatActivity {
         int colorCount = intent.getIntExtra(DefaultImageActivity.EXTRA_COLOR_COUNT, -1);
 
         Bitmap bitmap = null;
-
-        if (imageUriString != null) {
-            Uri imageUri = Uri.parse(imageUriString);
-            try {
-                bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUri);
-            } catch (IOException e) {e.printStackTrace();}
-        }
-        else if (imageId != -1) {
-            bitmap = BitmapFactory.decodeResource(getResources(), imageId);
-        }
+        ImageLoader loader = new ImageLoader(this);
+
+        try {
+            if (imageUriString != null) {
+                bitmap = loader.loadSquare(Uri.parse(imageUriString), gridSize);
+            }
+            else if (imageId != -1) {
+                bitmap = loader.loadSquare(imageId, gridSize);
+            }
+        } catch (IOException e) {e.printStackTrace();}
 
         ImageProcessor ip = new ImageProcessor(this, bitmap, gridSize, colorCount);
         Bitmap new_image = ip.getPosterizedImage(512);
@@ -0,0 +1,106 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * A generated puzzle: a size x size grid of palette indexes plus the palette itself.
+ * <p>
+ * Indexes are stored row-major as unsigned bytes, one per cell, so a puzzle can hold up
+ * to 256 colors. The palette is sorted by ARGB value, which fixes the number shown for
+ * each color. A puzzle loaded from a file can instead read its cells through a
+ * {@link MappedPuzzle}; the byte grid is then only unpacked if {@link #getIndexes} asks for it.
+ */
+public class Puzzle {
+    public static final int MAX_COLORS = 256;
+
+    private final int size;
+    private final int[] palette;
+    // null until unpacked when the cells are read through mapped
+    private volatile byte[] indexes;
+    private final MappedPuzzle mapped;
+
+    public Puzzle(int size, int[] palette, byte[] indexes) {
+        if (palette.length > MAX_COLORS) throw new IllegalArgumentException("Too many colors: " + palette.length);
+        if (indexes.length != size * size) throw new IllegalArgumentException("Expected " + (size * size) + " cells");
+        this.size = size;
+        this.palette = palette;
+        this.indexes = indexes;
+        this.mapped = null;
+    }
+
+    Puzzle(MappedPuzzle mapped) {
+        this.size = mapped.getSize();
+        this.palette = mapped.getPalette();
+        this.mapped = mapped;
+    }
+
+    /**
+     * Builds a puzzle from quantizer output: palette entries in cluster order and the
+     * cluster index of every cell. The palette is sorted and the indexes remapped to match.
+     */
+    public static Puzzle fromAssignments(int size, int[] palette, int[] assignments) {
+        int num_colors = palette.length;
+        Integer[] order = new Integer[num_colors];
+        for (int k = 0; k < num_colors; k++) order[k] = k;
+        Arrays.sort(order, (a, b) -> Integer.compare(palette[a], palette[b]));
+
+        int[] sorted_palette = new int[num_colors];
+        byte[] remap = new byte[num_colors];
+        for (int k = 0; k < num_colors; k++) {
+            sorted_palette[k] = palette[order[k]];
+            remap[order[k]] = (byte) k;
+        }
+
+        byte[] indexes = new byte[assignments.length];
+        for (int i = 0; i < assignments.length; i++) {
+            indexes[i] = remap[assignments[i]];
+        }
+        return new Puzzle(size, sorted_palette, indexes);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getNumColors() {
+        return palette.length;
+    }
+
+    /** Opaque ARGB colors, sorted ascending. */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /** Row-major palette index of every cell, as unsigned bytes. Prefer {@link #getIndex}. */
+    public byte[] getIndexes() {
+        byte[] unpacked = indexes;
+        if (unpacked == null) {
+            unpacked = mapped.unpackIndexes();
+            indexes = unpacked;
+        }
+        return unpacked;
+    }
+
+    /** Palette index of a cell, in row-major order. */
+    public int getIndex(int cell) {
+        byte[] unpacked = indexes;
+        return (unpacked != null) ? unpacked[cell] & 0xFF : mapped.getIndex(cell);
+    }
+
+    public int getIndex(int row, int col) {
+        return getIndex(row * size + col);
+    }
+
+    public int getColor(int row, int col) {
+        return palette[getIndex(row, col)];
+    }
+
+    /** Row-major ARGB color of every cell. */
+    public int[] toPixels() {
+        int[] pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = palette[getIndex(i)];
+        }
+        return pixels;
+    }
+}
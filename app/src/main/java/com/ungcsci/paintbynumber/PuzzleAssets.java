@@ -0,0 +1,58 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Puzzles for the curated images, generated by the precomputePuzzles task (src/precompute)
+ * for every grid size and color count in setting_arrays.xml and committed under
+ * src/main/assets, stored in the {@link PuzzleFormat}.
+ * <p>
+ * The build stores .puzzle assets uncompressed, so they are mapped straight out of the APK
+ * with {@link MappedPuzzle}; a compressed asset, which openFd refuses, is streamed instead.
+ */
+public class PuzzleAssets {
+    private static final String TAG = "PuzzleAssets";
+
+    public static final String DIRECTORY = "puzzles";
+
+    private final Context context;
+
+    public PuzzleAssets(Context context) {
+        this.context = context;
+    }
+
+    /** Asset path of the puzzle for the drawable called image_name. */
+    public static String assetName(String image_name, int grid_size, int color_count) {
+        return DIRECTORY + "/" + image_name + "_" + grid_size + "_" + color_count + ".puzzle";
+    }
+
+    /** The precomputed puzzle for a drawable, or null if there is none. */
+    public Puzzle load(int resource_id, int grid_size, int color_count) {
+        String name = assetName(context.getResources().getResourceEntryName(resource_id), grid_size, color_count);
+        try (AssetFileDescriptor fd = context.getAssets().openFd(name)) {
+            return MappedPuzzle.open(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength()).toPuzzle();
+        } catch (FileNotFoundException e) {
+            // missing, or compressed after all
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map " + name, e);
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(context.getAssets().open(name)))) {
+            return PuzzleFormat.read(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            // a broken asset is generated like any other image
+            Log.w(TAG, "Unable to read " + name, e);
+            return null;
+        }
+    }
+}
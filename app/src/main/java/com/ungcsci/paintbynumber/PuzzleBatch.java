@@ -0,0 +1,62 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * Puzzles for several color counts of one image and grid size, sharing the work they have
+ * in common.
+ * <p>
+ * The source is denoised once and downscaled once. With the LAB k-means engine the color
+ * counts run in ascending order through one {@link WarmStartQuantizer}, so every run starts
+ * from the previous palette with its worst clusters split and converges in a few passes.
+ * The other engines are one pass and simply reuse the shared downscaled pixels. Works on
+ * plain int[] buffers so it also runs off Android.
+ */
+public class PuzzleBatch {
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final int logical_size;
+    private final ImageProcessor.Options options;
+
+    private WarmStartQuantizer warm_start;
+    private int[] logical_pixels;
+
+    public PuzzleBatch(int[] pixels, int width, int height, int logical_size, ImageProcessor.Options options) {
+        this.width = width;
+        this.height = height;
+        this.logical_size = logical_size;
+        this.options = options;
+        this.pixels = options.denoise
+                ? new BilateralFilter(options.denoise_spatial_radius, options.denoise_color_radius,
+                        options.num_workers).apply(pixels, width, height)
+                : pixels;
+    }
+
+    /** One puzzle per entry of color_counts, in the same order. */
+    public Puzzle[] generate(int[] color_counts) {
+        Integer[] order = new Integer[color_counts.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(color_counts[a], color_counts[b]));
+
+        Puzzle[] puzzles = new Puzzle[color_counts.length];
+        for (int i : order) {
+            puzzles[i] = generate(color_counts[i]);
+        }
+        return puzzles;
+    }
+
+    public Puzzle generate(int num_colors) {
+        if (options.engine == ImageProcessor.Engine.KMEANS_LAB) {
+            if (warm_start == null) warm_start = new WarmStartQuantizer(pixels, width, height, options);
+            return warm_start.quantize(logical_size, num_colors);
+        }
+
+        if (logical_pixels == null) {
+            logical_pixels = new Downscaler(options.num_workers).downscale(pixels, width, height, logical_size);
+        }
+        int[] indexes = new int[logical_pixels.length];
+        int[] palette = ImageProcessor.createQuantizer(options).quantize(logical_pixels, num_colors, indexes);
+        return Puzzle.fromAssignments(logical_size, palette, indexes);
+    }
+}
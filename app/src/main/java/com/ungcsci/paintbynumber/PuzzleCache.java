@@ -0,0 +1,136 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Generated puzzles kept on disk, so the same image and settings are only processed once.
+ * <p>
+ * Keys combine a SHA-256 of the source file with the grid size, the color count, the
+ * options that change the result ({@link ImageProcessor.Options#algorithmId}) and
+ * {@link ImageProcessor#ALGORITHM_VERSION}. Entries are written to a temp file and renamed
+ * into place, so a crash never leaves a partial entry. A file's modification time doubles as
+ * its last use, and the least recently used entries are deleted once the directory grows
+ * past {@link #MAX_BYTES}. Entries use {@link PuzzleFormat} and are read back by mapping
+ * them; files in an older or unknown format fail the header check and are dropped.
+ */
+public class PuzzleCache {
+    public static final long MAX_BYTES = 4 * 1024 * 1024;
+    private static final String SUFFIX = ".puzzle";
+
+    private final File directory;
+
+    public PuzzleCache(Context context) {
+        this(new File(context.getCacheDir(), "puzzles"));
+    }
+
+    public PuzzleCache(File directory) {
+        this.directory = directory;
+    }
+
+    /** SHA-256 of the image in source (read to the end, not closed), for {@link #keyFor}. */
+    public static byte[] hashSource(InputStream source) throws IOException {
+        MessageDigest content = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            content.update(buffer, 0, read);
+        }
+        return content.digest();
+    }
+
+    /** Key for a puzzle made with options from the image that hashed to source_hash. */
+    public static String keyFor(byte[] source_hash, int grid_size, int color_count, ImageProcessor.Options options) {
+        MessageDigest key = sha256();
+        key.update(source_hash);
+        String settings = grid_size + "/" + color_count + "/" + options.algorithmId() + "/"
+                + ImageProcessor.ALGORITHM_VERSION;
+        key.update(settings.getBytes(StandardCharsets.UTF_8));
+        return toHex(key.digest());
+    }
+
+    /** The cached puzzle, reading its cells through a mapping, or null on a miss or an unreadable entry. */
+    public synchronized Puzzle get(String key) {
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) return null;
+
+        try {
+            Puzzle puzzle = MappedPuzzle.open(file).toPuzzle();
+            file.setLastModified(System.currentTimeMillis());
+            return puzzle;
+        } catch (IOException | IllegalArgumentException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /** Stores a puzzle, then trims the cache back under its size cap. */
+    public synchronized void put(String key, Puzzle puzzle) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        File temp = File.createTempFile("puzzle", ".tmp", directory);
+        try {
+            try (FileOutputStream file_out = new FileOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out));
+                PuzzleFormat.write(puzzle, out, true);
+                out.flush();
+                file_out.getFD().sync();
+            }
+            if (!temp.renameTo(new File(directory, key + SUFFIX))) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } finally {
+            temp.delete();
+        }
+        trim();
+    }
+
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= MAX_BYTES) return;
+
+        // oldest use first
+        long[] last_used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            last_used[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(last_used[a], last_used[b]));
+        for (int i = 0; i < order.length && total > MAX_BYTES; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) total -= length;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+}
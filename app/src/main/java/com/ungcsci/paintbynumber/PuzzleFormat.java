@@ -0,0 +1,183 @@
+package com.ungcsci.paintbynumber;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The binary puzzle file format shared by {@link PuzzleCache}, {@link PuzzleAssets} and
+ * anything else that stores puzzles. All values are big-endian.
+ * <pre>
+ *   0  4  magic "PBNP"
+ *   4  1  version
+ *   5  1  flags, {@link #FLAG_RLE}
+ *   6  1  bits per index, 4 when there are at most 16 colors, else 8
+ *   7  1  reserved, 0
+ *   8  2  size (cells per side)
+ *  10  2  number of colors
+ *  12  4  index data length in bytes
+ *  16     palette, one ARGB int per color
+ *         index data
+ * </pre>
+ * Index data is the row-major index grid, packed two cells per byte (high nibble first) at
+ * 4 bits. With FLAG_RLE it is instead a list of runs, each a byte holding the run length
+ * minus one followed by a byte holding the index; the writer only picks runs when they are
+ * smaller. {@link MappedPuzzle} reads files without copying the grid.
+ */
+public final class PuzzleFormat {
+    public static final int MAGIC = 0x50424e50;  // "PBNP"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int FLAG_RLE = 1;
+
+    // keeps the cell count well inside an int
+    public static final int MAX_SIZE = 4096;
+
+    private static final int MAX_RUN = 256;
+
+    private PuzzleFormat() {
+    }
+
+    /** Writes puzzle, run-length encoded if allow_rle is set and that comes out smaller. */
+    public static void write(Puzzle puzzle, DataOutput out, boolean allow_rle) throws IOException {
+        int num_colors = puzzle.getNumColors();
+        int bits = (num_colors <= 16) ? 4 : 8;
+        byte[] indexes = puzzle.getIndexes();
+        byte[] data = pack(indexes, bits);
+        boolean rle = false;
+        if (allow_rle && countRuns(indexes) * 2 < data.length) {
+            data = encodeRuns(indexes);
+            rle = true;
+        }
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(rle ? FLAG_RLE : 0);
+        out.writeByte(bits);
+        out.writeByte(0);
+        out.writeShort(puzzle.getSize());
+        out.writeShort(num_colors);
+        out.writeInt(data.length);
+        for (int color : puzzle.getPalette()) out.writeInt(color);
+        out.write(data);
+    }
+
+    /**
+     * Reads a whole puzzle from a stream, e.g. when the file cannot be mapped, checking the
+     * header and every index before trusting them.
+     */
+    public static Puzzle read(DataInput in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        int size = buffer.getShort(8) & 0xFFFF;
+        int num_colors = buffer.getShort(10) & 0xFFFF;
+        int data_length = buffer.getInt(12);
+        // a short stream fails in readFully instead
+        checkHeader(buffer, Long.MAX_VALUE);
+
+        int[] palette = new int[num_colors];
+        for (int k = 0; k < num_colors; k++) palette[k] = in.readInt();
+        byte[] data = new byte[data_length];
+        in.readFully(data);
+
+        int bits = buffer.get(6);
+        boolean rle = (buffer.get(5) & FLAG_RLE) != 0;
+        byte[] indexes = rle ? decodeRuns(data, size * size) : unpack(data, bits, size * size);
+        checkIndexes(indexes, num_colors);
+        return new Puzzle(size, palette, indexes);
+    }
+
+    /**
+     * Throws if the header at the start of buffer is not one this version can read, or
+     * describes more bytes than the available length of the file.
+     */
+    static void checkHeader(ByteBuffer buffer, long available) throws IOException {
+        if (available < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not a puzzle file");
+        int version = buffer.get(4) & 0xFF;
+        if (version > VERSION) throw new IOException("Puzzle file version " + version + " is newer than " + VERSION);
+
+        int bits = buffer.get(6);
+        int size = buffer.getShort(8) & 0xFFFF;
+        int num_colors = buffer.getShort(10) & 0xFFFF;
+        int data_length = buffer.getInt(12);
+        boolean rle = (buffer.get(5) & FLAG_RLE) != 0;
+        if (size == 0 || size > MAX_SIZE || num_colors == 0 || num_colors > Puzzle.MAX_COLORS) throw new IOException("Bad puzzle header");
+        if (bits != 4 && bits != 8 || bits == 4 && num_colors > 16) throw new IOException("Bad index width " + bits);
+        // every run covers at least one cell
+        if (!rle && data_length != packedLength(size * size, bits)
+                || rle && (data_length <= 0 || data_length % 2 != 0 || data_length > size * size * 2)) {
+            throw new IOException("Bad index data length " + data_length);
+        }
+        if (HEADER_SIZE + num_colors * 4L + data_length > available) throw new IOException("Truncated puzzle");
+    }
+
+    private static void checkIndexes(byte[] indexes, int num_colors) throws IOException {
+        for (byte index : indexes) checkIndex(index & 0xFF, num_colors);
+    }
+
+    static void checkIndex(int index, int num_colors) throws IOException {
+        if (index >= num_colors) throw new IOException("Index " + index + " past the palette");
+    }
+
+    private static int packedLength(int num_cells, int bits) {
+        return (bits == 4) ? (num_cells + 1) / 2 : num_cells;
+    }
+
+    private static byte[] pack(byte[] indexes, int bits) {
+        if (bits == 8) return indexes.clone();
+        byte[] packed = new byte[packedLength(indexes.length, 4)];
+        for (int i = 0; i < indexes.length; i++) {
+            packed[i >> 1] |= (i & 1) == 0 ? indexes[i] << 4 : indexes[i];
+        }
+        return packed;
+    }
+
+    private static byte[] unpack(byte[] data, int bits, int num_cells) {
+        if (bits == 8) return data;
+        byte[] indexes = new byte[num_cells];
+        for (int i = 0; i < num_cells; i++) {
+            indexes[i] = (byte) ((i & 1) == 0 ? (data[i >> 1] >> 4) & 0x0F : data[i >> 1] & 0x0F);
+        }
+        return indexes;
+    }
+
+    private static int countRuns(byte[] indexes) {
+        int runs = 0;
+        for (int i = 0; i < indexes.length; ) {
+            int end = i + 1;
+            while (end < indexes.length && end - i < MAX_RUN && indexes[end] == indexes[i]) end++;
+            runs++;
+            i = end;
+        }
+        return runs;
+    }
+
+    private static byte[] encodeRuns(byte[] indexes) {
+        byte[] data = new byte[countRuns(indexes) * 2];
+        int out = 0;
+        for (int i = 0; i < indexes.length; ) {
+            int end = i + 1;
+            while (end < indexes.length && end - i < MAX_RUN && indexes[end] == indexes[i]) end++;
+            data[out++] = (byte) (end - i - 1);
+            data[out++] = indexes[i];
+            i = end;
+        }
+        return data;
+    }
+
+    private static byte[] decodeRuns(byte[] data, int num_cells) throws IOException {
+        byte[] indexes = new byte[num_cells];
+        int cell = 0;
+        for (int r = 0; r < data.length; r += 2) {
+            int length = (data[r] & 0xFF) + 1;
+            if (cell + length > num_cells) throw new IOException("Runs overflow the grid");
+            Arrays.fill(indexes, cell, cell + length, data[r + 1]);
+            cell += length;
+        }
+        if (cell != num_cells) throw new IOException("Runs do not cover the grid");
+        return indexes;
+    }
+}
@@ -0,0 +1,196 @@
+package com.ungcsci.paintbynumber;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the decode and {@link ImageProcessor} pipeline on a background thread.
+ * <p>
+ * Jobs share one app wide worker thread and run in submission order. Progress and the
+ * result are posted to the main thread. A cancelled job stops at its next progress report
+ * or k-means pass, and nothing more is delivered to its listener. Finished puzzles go into
+ * a {@link PuzzleCache}, and a cache hit, like a precomputed {@link PuzzleAssets} puzzle for
+ * a curated image, skips decoding and processing altogether. With a hierarchy the puzzle at
+ * its top level is stored and looked up alongside the requested one.
+ */
+public class PuzzleGenerator {
+    private static final String TAG = "PuzzleGenerator";
+
+    /** Display size of the posterized image handed to the listener. */
+    public static final int DISPLAY_SIZE = 512;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PuzzleGenerator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Callbacks, all on the main thread. */
+    public interface Listener {
+        void onProgress(ImageProcessor.Stage stage, int step, int num_steps);
+
+        /** A coarse or partly refined puzzle, when the options ask for progressive results. */
+        default void onIntermediate(Puzzle puzzle) {}
+
+        /**
+         * puzzle has the requested color count; hierarchy is null unless the options ask for
+         * one, and then reaches up to options.hierarchy_max_colors.
+         */
+        void onComplete(Puzzle puzzle, PaletteHierarchy hierarchy, Bitmap posterized_image);
+
+        void onError(Exception e);
+    }
+
+    /** Handle to a submitted job. */
+    public static class Job {
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        public void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final Context context;
+    private final PuzzleCache cache;
+    private final PuzzleAssets assets;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+
+    public PuzzleGenerator(Context context) {
+        this.context = context.getApplicationContext();
+        this.cache = new PuzzleCache(this.context);
+        this.assets = new PuzzleAssets(this.context);
+    }
+
+    /**
+     * Generates a puzzle from image_uri, or from the drawable image_id when the uri is null.
+     */
+    public Job generate(Uri image_uri, int image_id, int grid_size, int color_count,
+                        ImageProcessor.Options options, Listener listener) {
+        Job job = new Job();
+        job.future = EXECUTOR.submit(() -> {
+            try {
+                ImageProcessor.ProgressListener progress = new ImageProcessor.ProgressListener() {
+                    @Override
+                    public void onProgress(ImageProcessor.Stage stage, int step, int num_steps) {
+                        checkCancelled(job);
+                        post(job, () -> listener.onProgress(stage, step, num_steps));
+                    }
+
+                    @Override
+                    public void onIntermediateResult(Puzzle puzzle) {
+                        checkCancelled(job);
+                        post(job, () -> listener.onIntermediate(puzzle));
+                    }
+                };
+
+                progress.onProgress(ImageProcessor.Stage.DECODE, 0, 1);
+                // with a hierarchy, a stored puzzle is only used when the one at the top level of
+                // the hierarchy is stored too
+                int base_colors = (options.hierarchy_min_colors > 0)
+                        ? Math.max(color_count, options.hierarchy_max_colors)
+                        : color_count;
+                if (image_uri == null) {
+                    Puzzle precomputed = assets.load(image_id, grid_size, color_count);
+                    Puzzle precomputed_base = (base_colors == color_count)
+                            ? precomputed
+                            : assets.load(image_id, grid_size, base_colors);
+                    if (precomputed != null && precomputed_base != null) {
+                        complete(job, precomputed, precomputed_base, options, listener);
+                        return;
+                    }
+                }
+
+                byte[] source_hash;
+                try (InputStream source = openSource(image_uri, image_id)) {
+                    source_hash = PuzzleCache.hashSource(source);
+                }
+                String key = PuzzleCache.keyFor(source_hash, grid_size, color_count, options);
+                // a run at base_colors makes the same base puzzle, so it shares the entry
+                String base_key = (base_colors == color_count)
+                        ? key
+                        : PuzzleCache.keyFor(source_hash, grid_size, base_colors, options);
+                Puzzle cached = cache.get(key);
+                Puzzle cached_base = (cached != null && !base_key.equals(key)) ? cache.get(base_key) : cached;
+                if (cached != null && cached_base != null) {
+                    complete(job, cached, cached_base, options, listener);
+                    return;
+                }
+
+                ImageLoader loader = new ImageLoader(context);
+                Bitmap bitmap = (image_uri != null)
+                        ? loader.loadSquare(image_uri, grid_size)
+                        : loader.loadSquare(image_id, grid_size);
+
+                ImageProcessor ip = new ImageProcessor(context, bitmap, grid_size, color_count, options, progress);
+                Puzzle puzzle = ip.getPuzzle();
+                PaletteHierarchy hierarchy = ip.getHierarchy();
+                Bitmap posterized_image = ip.getPosterizedImage(DISPLAY_SIZE);
+                post(job, () -> listener.onComplete(puzzle, hierarchy, posterized_image));
+                // a run cut short by its time budget may do better next time, and one the tuner
+                // scaled down is not what the requested options would have made
+                ImageProcessor.Options ran = (ip.getTuning() != null) ? ip.getTuning().options : options;
+                boolean as_requested = PuzzleCache.keyFor(source_hash, grid_size, color_count, ran).equals(key);
+                if (as_requested && !ip.reachedDeadline()) {
+                    try {
+                        cache.put(key, puzzle);
+                        if (hierarchy != null && !base_key.equals(key)) cache.put(base_key, hierarchy.getBase());
+                    } catch (IOException e) {
+                        // the puzzle is already delivered, only the next run misses the cache
+                        Log.w(TAG, "Unable to cache the puzzle", e);
+                    }
+                }
+            } catch (CancellationException e) {
+                // dropped by the caller, nothing to report
+            } catch (Exception e) {
+                post(job, () -> listener.onError(e));
+            }
+        });
+        return job;
+    }
+
+    // delivers a stored puzzle as if it had just been generated, with the hierarchy from base
+    private void complete(Job job, Puzzle puzzle, Puzzle base, ImageProcessor.Options options, Listener listener) {
+        PaletteHierarchy hierarchy = (options.hierarchy_min_colors > 0)
+                ? new PaletteHierarchy(base, options.hierarchy_min_colors)
+                : null;
+        int size = puzzle.getSize();
+        Bitmap image = Bitmap.createBitmap(puzzle.toPixels(), size, size, Bitmap.Config.ARGB_8888);
+        Bitmap posterized_image = Bitmap.createScaledBitmap(image, DISPLAY_SIZE, DISPLAY_SIZE, false);
+        post(job, () -> listener.onComplete(puzzle, hierarchy, posterized_image));
+    }
+
+    private InputStream openSource(Uri image_uri, int image_id) throws IOException {
+        if (image_uri == null) return context.getResources().openRawResource(image_id);
+        InputStream in = context.getContentResolver().openInputStream(image_uri);
+        if (in == null) throw new FileNotFoundException("Unable to open " + image_uri);
+        return in;
+    }
+
+    private static void checkCancelled(Job job) {
+        if (job.cancelled || Thread.currentThread().isInterrupted()) throw new CancellationException();
+    }
+
+    private void post(Job job, Runnable callback) {
+        main_handler.post(() -> {
+            if (!job.cancelled) callback.run();
+        });
+    }
+}
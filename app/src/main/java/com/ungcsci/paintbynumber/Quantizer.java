@@ -0,0 +1,16 @@
+package com.ungcsci.paintbynumber;
+
+/**
+ * Reduces an image to a small palette. Implementations work on opaque ARGB pixel buffers
+ * so they can run off the UI thread and outside Android.
+ */
+public interface Quantizer {
+    /**
+     * @param pixels     opaque ARGB pixels of the logical image
+     * @param num_colors maximum number of palette entries
+     * @param indexes    receives the palette index of every pixel
+     * @return the palette as opaque ARGB colors; may be shorter than num_colors when the
+     * image has fewer distinct colors
+     */
+    int[] quantize(int[] pixels, int num_colors, int[] indexes);
+}
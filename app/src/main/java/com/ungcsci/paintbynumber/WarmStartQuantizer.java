@@ -0,0 +1,179 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Re-quantizes one image at many grid sizes and color counts, starting every run from the
+ * previous result.
+ * <p>
+ * The LAB grid for each size is built once from the source with {@link Downscaler} and kept.
+ * Each run seeds k-means with the last centroids: unchanged when the color count is the same
+ * (e.g. only the grid size moved), with the highest error cluster split along its widest
+ * channel while there are too few, and with the cheapest pair (Ward cost) merged while there
+ * are too many. Warm runs usually converge within a few iterations.
+ */
+public class WarmStartQuantizer {
+    private final int[] source;
+    private final int width;
+    private final int height;
+    private final ImageProcessor.Options options;
+    private final Map<Integer, float[]> lab_grids = new HashMap<>();
+
+    // result of the last run, used to seed the next one
+    private float[] centroids;
+    private int[] counts;
+    // per cluster, per channel variance of the assigned points
+    private float[] variances;
+    private int iterations;
+
+    public WarmStartQuantizer(int[] source, int width, int height, ImageProcessor.Options options) {
+        this.source = source;
+        this.width = width;
+        this.height = height;
+        this.options = options;
+    }
+
+    /** k-means passes used by the last run. */
+    public int getIterations() {
+        return iterations;
+    }
+
+    public Puzzle quantize(int grid_size, int num_colors) {
+        float[] lab_data = lab_grids.get(grid_size);
+        if (lab_data == null) {
+            lab_data = new float[grid_size * grid_size * 3];
+            new Downscaler(options.num_workers).downscale(source, width, height, grid_size, null, lab_data);
+            lab_grids.put(grid_size, lab_data);
+        }
+
+        KMeans k_means = new KMeans(options.num_workers);
+        k_means.setSeeding(options.seeding);
+        k_means.setSeed(options.seed);
+        k_means.setMaxIterations(options.max_iterations);
+        k_means.setTolerance(options.tolerance);
+        k_means.setAccelerated(options.accelerated);
+        if (centroids != null) k_means.setInitialCentroids(resize(num_colors));
+
+        int num_points = grid_size * grid_size;
+        int[] assignments = new int[num_points];
+        float[] clusters = k_means.cluster(lab_data, null, num_colors, assignments);
+        iterations = k_means.getIterations();
+        updateStatistics(lab_data, clusters, assignments);
+
+        int[] palette = new int[num_colors];
+        for (int k = 0; k < num_colors; k++) {
+            palette[k] = LabConverter.lab2rgb(clusters[k * 3], clusters[k * 3 + 1], clusters[k * 3 + 2]);
+        }
+        return Puzzle.fromAssignments(grid_size, palette, assignments);
+    }
+
+    private void updateStatistics(float[] lab_data, float[] clusters, int[] assignments) {
+        int num_colors = clusters.length / 3;
+        centroids = clusters;
+        counts = new int[num_colors];
+        variances = new float[num_colors * 3];
+
+        double[] squares = new double[num_colors * 3];
+        for (int i = 0; i < assignments.length; i++) {
+            int k = assignments[i];
+            counts[k]++;
+            for (int j = 0; j < 3; j++) {
+                double delta = lab_data[i * 3 + j] - clusters[k * 3 + j];
+                squares[k * 3 + j] += delta * delta;
+            }
+        }
+        for (int k = 0; k < num_colors; k++) {
+            for (int j = 0; j < 3; j++) {
+                variances[k * 3 + j] = (counts[k] > 0) ? (float) (squares[k * 3 + j] / counts[k]) : 0;
+            }
+        }
+    }
+
+    // last centroids grown or shrunk to num_colors by splitting and merging
+    private float[] resize(int num_colors) {
+        int size = counts.length;
+        int capacity = Math.max(size, num_colors);
+        float[] c = new float[capacity * 3];
+        float[] v = new float[capacity * 3];
+        int[] n = new int[capacity];
+        System.arraycopy(centroids, 0, c, 0, size * 3);
+        System.arraycopy(variances, 0, v, 0, size * 3);
+        System.arraycopy(counts, 0, n, 0, size);
+
+        while (size > num_colors) {
+            // merge the pair whose union adds the least squared error
+            int best_a = 0;
+            int best_b = 1;
+            double best_cost = Double.MAX_VALUE;
+            for (int a = 0; a < size; a++) {
+                for (int b = a + 1; b < size; b++) {
+                    double d = 0;
+                    for (int j = 0; j < 3; j++) {
+                        double delta = c[a * 3 + j] - c[b * 3 + j];
+                        d += delta * delta;
+                    }
+                    double total = n[a] + n[b];
+                    double cost = (total > 0) ? (n[a] * (double) n[b] / total) * d : d;
+                    if (cost < best_cost) {
+                        best_cost = cost;
+                        best_a = a;
+                        best_b = b;
+                    }
+                }
+            }
+
+            int total = n[best_a] + n[best_b];
+            double share_a = (total > 0) ? n[best_a] / (double) total : 0.5;
+            for (int j = 0; j < 3; j++) {
+                float mean = (float) (share_a * c[best_a * 3 + j] + (1 - share_a) * c[best_b * 3 + j]);
+                double spread_a = c[best_a * 3 + j] - mean;
+                double spread_b = c[best_b * 3 + j] - mean;
+                // pooled variance of the union: within plus between
+                v[best_a * 3 + j] = (float) (share_a * (v[best_a * 3 + j] + spread_a * spread_a)
+                        + (1 - share_a) * (v[best_b * 3 + j] + spread_b * spread_b));
+                c[best_a * 3 + j] = mean;
+            }
+            n[best_a] = total;
+
+            // move the last cluster into the freed slot
+            size--;
+            System.arraycopy(c, size * 3, c, best_b * 3, 3);
+            System.arraycopy(v, size * 3, v, best_b * 3, 3);
+            n[best_b] = n[size];
+        }
+
+        while (size < num_colors) {
+            // split the cluster with the largest squared error along its widest channel
+            int worst = 0;
+            double worst_error = -1;
+            for (int k = 0; k < size; k++) {
+                double error = n[k] * (double) (v[k * 3] + v[k * 3 + 1] + v[k * 3 + 2]);
+                if (error > worst_error) {
+                    worst_error = error;
+                    worst = k;
+                }
+            }
+            int channel = 0;
+            for (int j = 1; j < 3; j++) {
+                if (v[worst * 3 + j] > v[worst * 3 + channel]) channel = j;
+            }
+
+            // the halves of a split distribution sit about one deviation either side
+            float deviation = (float) Math.sqrt(v[worst * 3 + channel]);
+            System.arraycopy(c, worst * 3, c, size * 3, 3);
+            System.arraycopy(v, worst * 3, v, size * 3, 3);
+            c[worst * 3 + channel] -= deviation;
+            c[size * 3 + channel] += deviation;
+            v[worst * 3 + channel] /= 4;
+            v[size * 3 + channel] /= 4;
+            n[size] = n[worst] / 2;
+            n[worst] -= n[size];
+            size++;
+        }
+
+        float[] resized = new float[num_colors * 3];
+        System.arraycopy(c, 0, resized, 0, num_colors * 3);
+        return resized;
+    }
+}
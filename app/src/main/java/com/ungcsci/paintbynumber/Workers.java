@@ -0,0 +1,60 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range into bands and runs them on a thread pool shared by the processing stages.
+ * <p>
+ * The pool is created once per process and its daemon threads stay alive between calls,
+ * so the downscale, the filter and every k-means pass no longer start and stop a thread
+ * per worker. The calling thread runs the first band itself, and bands never submit work
+ * of their own, so callers on different threads only queue behind each other.
+ */
+final class Workers {
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "Workers");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    interface Band {
+        void run(int start, int end);
+    }
+
+    private Workers() {
+    }
+
+    /** Runs [0, size) as up to num_workers contiguous bands and returns once all are done. */
+    static void run(int num_workers, int size, Band band) {
+        int workers = Math.min(num_workers, size);
+        if (workers <= 1) {
+            band.run(0, size);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(workers - 1);
+        try {
+            for (int w = 1; w < workers; w++) {
+                final int start = size * w / workers;
+                final int end = size * (w + 1) / workers;
+                futures.add(POOL.submit(() -> band.run(start, end)));
+            }
+            band.run(0, size / workers);
+            for (Future<?> f : futures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // drops bands still queued when this call failed; a no-op once they are done
+            for (Future<?> f : futures) f.cancel(false);
+        }
+    }
+}
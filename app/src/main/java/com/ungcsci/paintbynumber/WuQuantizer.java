@@ -0,0 +1,334 @@
+package com.ungcsci.paintbynumber;
+
+import java.util.Arrays;
+
+/**
+ * Xiaolin Wu's variance minimizing quantizer (Graphics Gems II). Pixels are binned into a
+ * 32x32x32 RGB histogram whose cumulative moments give the weight, mean and variance of any
+ * box in constant time. Boxes are split greedily along the cut that removes the most
+ * variance until there are num_colors of them.
+ */
+public class WuQuantizer implements Quantizer {
+    private static final int SIDE = 33;
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+
+    private static class Box {
+        int r0, r1, g0, g1, b0, b1;
+        int volume;
+    }
+
+    // cumulative moments, indexed by (r * SIDE + g) * SIDE + b with bins 1..32
+    private final long[] weights = new long[SIDE * SIDE * SIDE];
+    private final long[] moments_red = new long[SIDE * SIDE * SIDE];
+    private final long[] moments_green = new long[SIDE * SIDE * SIDE];
+    private final long[] moments_blue = new long[SIDE * SIDE * SIDE];
+    private final double[] moments_squared = new double[SIDE * SIDE * SIDE];
+
+    private static int index(int r, int g, int b) {
+        return (r * SIDE + g) * SIDE + b;
+    }
+
+    @Override
+    public int[] quantize(int[] pixels, int num_colors, int[] indexes) {
+        buildHistogram(pixels);
+        computeMoments();
+
+        Box[] boxes = new Box[num_colors];
+        for (int k = 0; k < num_colors; k++) boxes[k] = new Box();
+        boxes[0].r1 = SIDE - 1;
+        boxes[0].g1 = SIDE - 1;
+        boxes[0].b1 = SIDE - 1;
+
+        double[] variances = new double[num_colors];
+        int num_boxes = 1;
+        int next = 0;
+        while (num_boxes < num_colors) {
+            if (cut(boxes[next], boxes[num_boxes])) {
+                variances[next] = (boxes[next].volume > 1) ? variance(boxes[next]) : 0;
+                variances[num_boxes] = (boxes[num_boxes].volume > 1) ? variance(boxes[num_boxes]) : 0;
+                num_boxes++;
+            } else {
+                variances[next] = 0;
+            }
+
+            next = 0;
+            double worst = variances[0];
+            for (int k = 1; k < num_boxes; k++) {
+                if (variances[k] > worst) {
+                    worst = variances[k];
+                    next = k;
+                }
+            }
+            if (worst <= 0) break;
+        }
+
+        // tag every histogram bin with its box and average each box
+        int[] tags = new int[SIDE * SIDE * SIDE];
+        int[] palette = new int[num_boxes];
+        int num_palette = 0;
+        int[] box_palette = new int[num_boxes];
+        for (int k = 0; k < num_boxes; k++) {
+            Box box = boxes[k];
+            long weight = volume(box, weights);
+            if (weight == 0) {
+                box_palette[k] = -1;
+                continue;
+            }
+            for (int r = box.r0 + 1; r <= box.r1; r++) {
+                for (int g = box.g0 + 1; g <= box.g1; g++) {
+                    for (int b = box.b0 + 1; b <= box.b1; b++) {
+                        tags[index(r, g, b)] = k;
+                    }
+                }
+            }
+            int red = (int) ((volume(box, moments_red) + weight / 2) / weight);
+            int green = (int) ((volume(box, moments_green) + weight / 2) / weight);
+            int blue = (int) ((volume(box, moments_blue) + weight / 2) / weight);
+            box_palette[k] = num_palette;
+            palette[num_palette++] = (0xFF << 24) | (red << 16) | (green << 8) | blue;
+        }
+
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int r = ((color >> 19) & 0x1F) + 1;
+            int g = ((color >> 11) & 0x1F) + 1;
+            int b = ((color >> 3) & 0x1F) + 1;
+            indexes[i] = box_palette[tags[index(r, g, b)]];
+        }
+
+        return (num_palette == palette.length) ? palette : Arrays.copyOf(palette, num_palette);
+    }
+
+    private void buildHistogram(int[] pixels) {
+        Arrays.fill(weights, 0);
+        Arrays.fill(moments_red, 0);
+        Arrays.fill(moments_green, 0);
+        Arrays.fill(moments_blue, 0);
+        Arrays.fill(moments_squared, 0);
+
+        for (int color : pixels) {
+            int red = (color >> 16) & 0xFF;
+            int green = (color >> 8) & 0xFF;
+            int blue = color & 0xFF;
+            int bin = index((red >> 3) + 1, (green >> 3) + 1, (blue >> 3) + 1);
+            weights[bin]++;
+            moments_red[bin] += red;
+            moments_green[bin] += green;
+            moments_blue[bin] += blue;
+            moments_squared[bin] += red * red + green * green + blue * blue;
+        }
+    }
+
+    // turns the histogram into 3D prefix sums in place
+    private void computeMoments() {
+        long[] area = new long[SIDE];
+        long[] area_red = new long[SIDE];
+        long[] area_green = new long[SIDE];
+        long[] area_blue = new long[SIDE];
+        double[] area_squared = new double[SIDE];
+
+        for (int r = 1; r < SIDE; r++) {
+            Arrays.fill(area, 0);
+            Arrays.fill(area_red, 0);
+            Arrays.fill(area_green, 0);
+            Arrays.fill(area_blue, 0);
+            Arrays.fill(area_squared, 0);
+
+            for (int g = 1; g < SIDE; g++) {
+                long line = 0;
+                long line_red = 0;
+                long line_green = 0;
+                long line_blue = 0;
+                double line_squared = 0;
+
+                for (int b = 1; b < SIDE; b++) {
+                    int i = index(r, g, b);
+                    line += weights[i];
+                    line_red += moments_red[i];
+                    line_green += moments_green[i];
+                    line_blue += moments_blue[i];
+                    line_squared += moments_squared[i];
+
+                    area[b] += line;
+                    area_red[b] += line_red;
+                    area_green[b] += line_green;
+                    area_blue[b] += line_blue;
+                    area_squared[b] += line_squared;
+
+                    int previous = index(r - 1, g, b);
+                    weights[i] = weights[previous] + area[b];
+                    moments_red[i] = moments_red[previous] + area_red[b];
+                    moments_green[i] = moments_green[previous] + area_green[b];
+                    moments_blue[i] = moments_blue[previous] + area_blue[b];
+                    moments_squared[i] = moments_squared[previous] + area_squared[b];
+                }
+            }
+        }
+    }
+
+    private static long volume(Box box, long[] moment) {
+        return moment[index(box.r1, box.g1, box.b1)]
+                - moment[index(box.r1, box.g1, box.b0)]
+                - moment[index(box.r1, box.g0, box.b1)]
+                + moment[index(box.r1, box.g0, box.b0)]
+                - moment[index(box.r0, box.g1, box.b1)]
+                + moment[index(box.r0, box.g1, box.b0)]
+                + moment[index(box.r0, box.g0, box.b1)]
+                - moment[index(box.r0, box.g0, box.b0)];
+    }
+
+    private static double volume(Box box, double[] moment) {
+        return moment[index(box.r1, box.g1, box.b1)]
+                - moment[index(box.r1, box.g1, box.b0)]
+                - moment[index(box.r1, box.g0, box.b1)]
+                + moment[index(box.r1, box.g0, box.b0)]
+                - moment[index(box.r0, box.g1, box.b1)]
+                + moment[index(box.r0, box.g1, box.b0)]
+                + moment[index(box.r0, box.g0, box.b1)]
+                - moment[index(box.r0, box.g0, box.b0)];
+    }
+
+    // part of the box's moment below the lower face in the given direction
+    private static long bottom(Box box, int direction, long[] moment) {
+        switch (direction) {
+            case RED:
+                return -moment[index(box.r0, box.g1, box.b1)]
+                        + moment[index(box.r0, box.g1, box.b0)]
+                        + moment[index(box.r0, box.g0, box.b1)]
+                        - moment[index(box.r0, box.g0, box.b0)];
+            case GREEN:
+                return -moment[index(box.r1, box.g0, box.b1)]
+                        + moment[index(box.r1, box.g0, box.b0)]
+                        + moment[index(box.r0, box.g0, box.b1)]
+                        - moment[index(box.r0, box.g0, box.b0)];
+            default:
+                return -moment[index(box.r1, box.g1, box.b0)]
+                        + moment[index(box.r1, box.g0, box.b0)]
+                        + moment[index(box.r0, box.g1, box.b0)]
+                        - moment[index(box.r0, box.g0, box.b0)];
+        }
+    }
+
+    // part of the box's moment up to the plane at position in the given direction
+    private static long top(Box box, int direction, int position, long[] moment) {
+        switch (direction) {
+            case RED:
+                return moment[index(position, box.g1, box.b1)]
+                        - moment[index(position, box.g1, box.b0)]
+                        - moment[index(position, box.g0, box.b1)]
+                        + moment[index(position, box.g0, box.b0)];
+            case GREEN:
+                return moment[index(box.r1, position, box.b1)]
+                        - moment[index(box.r1, position, box.b0)]
+                        - moment[index(box.r0, position, box.b1)]
+                        + moment[index(box.r0, position, box.b0)];
+            default:
+                return moment[index(box.r1, box.g1, position)]
+                        - moment[index(box.r1, box.g0, position)]
+                        - moment[index(box.r0, box.g1, position)]
+                        + moment[index(box.r0, box.g0, position)];
+        }
+    }
+
+    // weighted variance of the box, i.e. its sum of squared errors
+    private double variance(Box box) {
+        double red = volume(box, moments_red);
+        double green = volume(box, moments_green);
+        double blue = volume(box, moments_blue);
+        double squared = volume(box, moments_squared);
+        return squared - (red * red + green * green + blue * blue) / volume(box, weights);
+    }
+
+    /**
+     * Finds the cut in [first, last) along direction that maximizes the between-box variance.
+     * Returns the score and stores the cut position in cut[0], or -1 if no cut is possible.
+     */
+    private double maximize(Box box, int direction, int first, int last, int[] cut,
+                            long whole_red, long whole_green, long whole_blue, long whole_weight) {
+        long base_red = bottom(box, direction, moments_red);
+        long base_green = bottom(box, direction, moments_green);
+        long base_blue = bottom(box, direction, moments_blue);
+        long base_weight = bottom(box, direction, weights);
+
+        double max = 0;
+        cut[0] = -1;
+        for (int i = first; i < last; i++) {
+            double half_red = base_red + top(box, direction, i, moments_red);
+            double half_green = base_green + top(box, direction, i, moments_green);
+            double half_blue = base_blue + top(box, direction, i, moments_blue);
+            double half_weight = base_weight + top(box, direction, i, weights);
+            if (half_weight == 0) continue;
+
+            double score = (half_red * half_red + half_green * half_green + half_blue * half_blue) / half_weight;
+
+            half_red = whole_red - half_red;
+            half_green = whole_green - half_green;
+            half_blue = whole_blue - half_blue;
+            half_weight = whole_weight - half_weight;
+            if (half_weight == 0) continue;
+
+            score += (half_red * half_red + half_green * half_green + half_blue * half_blue) / half_weight;
+            if (score > max) {
+                max = score;
+                cut[0] = i;
+            }
+        }
+        return max;
+    }
+
+    // splits first into first and second; false if the box cannot be split
+    private boolean cut(Box first, Box second) {
+        long whole_red = volume(first, moments_red);
+        long whole_green = volume(first, moments_green);
+        long whole_blue = volume(first, moments_blue);
+        long whole_weight = volume(first, weights);
+
+        int[] cut_red = new int[1];
+        int[] cut_green = new int[1];
+        int[] cut_blue = new int[1];
+        double max_red = maximize(first, RED, first.r0 + 1, first.r1, cut_red,
+                whole_red, whole_green, whole_blue, whole_weight);
+        double max_green = maximize(first, GREEN, first.g0 + 1, first.g1, cut_green,
+                whole_red, whole_green, whole_blue, whole_weight);
+        double max_blue = maximize(first, BLUE, first.b0 + 1, first.b1, cut_blue,
+                whole_red, whole_green, whole_blue, whole_weight);
+
+        int direction;
+        if (max_red >= max_green && max_red >= max_blue) {
+            direction = RED;
+            if (cut_red[0] < 0) return false;
+        } else if (max_green >= max_red && max_green >= max_blue) {
+            direction = GREEN;
+        } else {
+            direction = BLUE;
+        }
+
+        second.r1 = first.r1;
+        second.g1 = first.g1;
+        second.b1 = first.b1;
+
+        switch (direction) {
+            case RED:
+                second.r0 = first.r1 = cut_red[0];
+                second.g0 = first.g0;
+                second.b0 = first.b0;
+                break;
+            case GREEN:
+                second.g0 = first.g1 = cut_green[0];
+                second.r0 = first.r0;
+                second.b0 = first.b0;
+                break;
+            default:
+                second.b0 = first.b1 = cut_blue[0];
+                second.r0 = first.r0;
+                second.g0 = first.g0;
+                break;
+        }
+
+        first.volume = (first.r1 - first.r0) * (first.g1 - first.g0) * (first.b1 - first.b0);
+        second.volume = (second.r1 - second.r0) * (second.g1 - second.g0) * (second.b1 - second.b0);
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package com.ungcsci.paintbynumber;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Generator for {@link PuzzleAssets}, run on the JVM by the precomputePuzzles Gradle task
+ * whenever the engine, the settings or the curated images change.
+ * <p>
+ * Every myimg* drawable is decoded with ImageIO and, for each grid size, shrunk to the same
+ * center square size {@link ImageLoader#loadSquare} decodes on a device. A
+ * {@link PuzzleBatch} then makes the puzzles for all color counts with the app's default
+ * options.
+ * <p>
+ * Usage: PrecomputePuzzles &lt;drawable dir&gt; &lt;setting_arrays.xml&gt; &lt;assets dir&gt;
+ */
+public class PrecomputePuzzles {
+    private static final String IMAGE_PREFIX = "myimg";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: PrecomputePuzzles <drawable dir> <setting_arrays.xml> <assets dir>");
+            System.exit(2);
+        }
+        File drawable_dir = new File(args[0]);
+        File settings = new File(args[1]);
+        File output_dir = new File(args[2], PuzzleAssets.DIRECTORY);
+
+        int[] grid_sizes = readIntegerArray(settings, "grid_sizes");
+        int[] color_counts = readIntegerArray(settings, "color_counts");
+        if (!output_dir.isDirectory() && !output_dir.mkdirs()) {
+            throw new IOException("Unable to create " + output_dir);
+        }
+
+        File[] images = drawable_dir.listFiles((dir, name) -> name.startsWith(IMAGE_PREFIX));
+        if (images == null) throw new IOException("Unable to list " + drawable_dir);
+        Arrays.sort(images);
+
+        ImageProcessor.Options options = new ImageProcessor.Options();
+        for (File image : images) {
+            String name = image.getName().substring(0, image.getName().lastIndexOf('.'));
+            BufferedImage source = ImageIO.read(image);
+            if (source == null) throw new IOException("Unable to decode " + image);
+
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+            int size = Math.min(width, height);
+
+            long start = System.nanoTime();
+            for (int grid_size : grid_sizes) {
+                // the center square as a device would decode it for this grid size
+                int decoded_size = size / ImageLoader.sampleSizeFor(size, grid_size);
+                int[] decoded = new Downscaler(options.num_workers).downscale(pixels, width, height, decoded_size);
+
+                PuzzleBatch batch = new PuzzleBatch(decoded, decoded_size, decoded_size, grid_size, options);
+                Puzzle[] puzzles = batch.generate(color_counts);
+                for (int i = 0; i < color_counts.length; i++) {
+                    write(puzzles[i], new File(args[2], PuzzleAssets.assetName(name, grid_size, color_counts[i])));
+                }
+            }
+            System.out.printf("%s: %d puzzles in %d ms%n", name, grid_sizes.length * color_counts.length,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private static void write(Puzzle puzzle, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            PuzzleFormat.write(puzzle, out, true);
+        }
+    }
+
+    private static int[] readIntegerArray(File resources, String array_name) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(resources);
+        NodeList arrays = document.getElementsByTagName("integer-array");
+        for (int i = 0; i < arrays.getLength(); i++) {
+            Element array = (Element) arrays.item(i);
+            if (!array_name.equals(array.getAttribute("name"))) continue;
+
+            NodeList items = array.getElementsByTagName("item");
+            int[] values = new int[items.getLength()];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = Integer.parseInt(items.item(j).getTextContent().trim());
+            }
+            return values;
+        }
+        throw new IOException("No integer-array " + array_name + " in " + resources);
+    }
+}
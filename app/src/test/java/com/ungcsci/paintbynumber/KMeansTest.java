@@ -0,0 +1,104 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class KMeansTest {
+    private static final int NUM_POINTS = 20000;
+    private static final int NUM_COLORS = 12;
+
+    // blobs around random centers, spread over many chunks
+    private static float[] blobs(long seed) {
+        Random rand = new Random(seed);
+        float[] centers = new float[NUM_COLORS * 3];
+        for (int i = 0; i < centers.length; i++) centers[i] = rand.nextFloat() * 100;
+        float[] data = new float[NUM_POINTS * 3];
+        for (int i = 0; i < NUM_POINTS; i++) {
+            int k = rand.nextInt(NUM_COLORS);
+            for (int j = 0; j < 3; j++) data[i * 3 + j] = centers[k * 3 + j] + (float) rand.nextGaussian() * 8;
+        }
+        return data;
+    }
+
+    private static int[] weights(long seed) {
+        Random rand = new Random(seed);
+        int[] weights = new int[NUM_POINTS];
+        for (int i = 0; i < NUM_POINTS; i++) weights[i] = 1 + rand.nextInt(5);
+        return weights;
+    }
+
+    private static KMeans kMeans(int workers, boolean accelerated, KMeans.Seeding seeding) {
+        KMeans k_means = new KMeans(workers);
+        k_means.setAccelerated(accelerated);
+        k_means.setSeeding(seeding);
+        k_means.setMaxIterations(50);
+        return k_means;
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        for (boolean accelerated : new boolean[]{false, true}) {
+            for (int[] weights : new int[][]{null, weights(2)}) {
+                float[] data = blobs(1);
+                KMeans serial = kMeans(1, accelerated, KMeans.Seeding.KMEANS_PLUS_PLUS);
+                int[] serial_assignments = new int[NUM_POINTS];
+                float[] serial_clusters = serial.cluster(data, weights, NUM_COLORS, serial_assignments);
+
+                for (int workers : new int[]{2, 3, 8}) {
+                    KMeans parallel = kMeans(workers, accelerated, KMeans.Seeding.KMEANS_PLUS_PLUS);
+                    int[] assignments = new int[NUM_POINTS];
+                    float[] clusters = parallel.cluster(data, weights, NUM_COLORS, assignments);
+                    assertArrayEquals(serial_clusters, clusters, 0f);
+                    assertArrayEquals(serial_assignments, assignments);
+                    assertEquals(serial.getIterations(), parallel.getIterations());
+                    assertEquals(serial.getInertia(), parallel.getInertia(), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hamerlyMatchesLloyd() {
+        for (KMeans.Seeding seeding : KMeans.Seeding.values()) {
+            for (int workers : new int[]{1, 4}) {
+                float[] data = blobs(3);
+                int[] weights = weights(4);
+                KMeans lloyd = kMeans(workers, false, seeding);
+                int[] lloyd_assignments = new int[NUM_POINTS];
+                float[] lloyd_clusters = lloyd.cluster(data, weights, NUM_COLORS, lloyd_assignments);
+
+                KMeans hamerly = kMeans(workers, true, seeding);
+                int[] assignments = new int[NUM_POINTS];
+                float[] clusters = hamerly.cluster(data, weights, NUM_COLORS, assignments);
+                assertArrayEquals(lloyd_clusters, clusters, 0f);
+                assertArrayEquals(lloyd_assignments, assignments);
+                assertEquals(lloyd.getIterations(), hamerly.getIterations());
+            }
+        }
+    }
+
+    @Test
+    public void emptyInputGivesEmptyRun() {
+        KMeans k_means = kMeans(4, true, KMeans.Seeding.GREEDY_KMEANS_PLUS_PLUS);
+        float[] clusters = k_means.cluster(new float[0], null, NUM_COLORS, new int[0]);
+        assertEquals(NUM_COLORS * 3, clusters.length);
+        assertEquals(0, k_means.getIterations());
+
+        k_means.setInitialCentroids(new float[]{1, 2, 3});
+        clusters = k_means.clusterMiniBatch(new float[0], new int[0], 2, new int[0]);
+        assertArrayEquals(new float[]{1, 2, 3, 0, 0, 0}, clusters, 0f);
+    }
+
+    @Test
+    public void zeroWeightsDoNotThrow() {
+        float[] data = blobs(5);
+        int[] assignments = new int[NUM_POINTS];
+        KMeans k_means = kMeans(2, false, KMeans.Seeding.RANDOM);
+        assertEquals(NUM_COLORS * 3, k_means.cluster(data, new int[NUM_POINTS], NUM_COLORS, assignments).length);
+        assertEquals(NUM_COLORS * 3, k_means.clusterMiniBatch(data, new int[NUM_POINTS], NUM_COLORS, assignments).length);
+    }
+}
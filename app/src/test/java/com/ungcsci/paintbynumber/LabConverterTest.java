@@ -0,0 +1,113 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks the table-driven conversions against straightforward Math.pow ones. */
+public class LabConverterTest {
+    private static final float X_N = 0.95047f;
+    private static final float Y_N = 1.00000f;
+    private static final float Z_N = 1.08883f;
+    private static final float EPSILON = 0.008856f;
+
+    @Test
+    public void rgb2labMatchesReferenceForEveryColor() {
+        float[] lab = new float[3];
+        float worst = 0;
+        for (int color = 0; color < 1 << 24; color++) {
+            int red = color >> 16;
+            int green = (color >> 8) & 0xFF;
+            int blue = color & 0xFF;
+            LabConverter.rgb2lab(color, lab, 0);
+            float[] expected = referenceRgb2lab(red, green, blue);
+            for (int c = 0; c < 3; c++) worst = Math.max(worst, Math.abs(lab[c] - expected[c]));
+        }
+        assertTrue("worst difference " + worst, worst < 0.001f);
+    }
+
+    @Test
+    public void lab2rgbMatchesReferenceWithinRounding() {
+        int mismatches = 0;
+        int checked = 0;
+        // every 24-bit color would take long with Math.pow twice, a 3-step lattice covers the cube
+        for (int red = 0; red < 256; red += 3) {
+            for (int green = 0; green < 256; green += 3) {
+                for (int blue = 0; blue < 256; blue += 3) {
+                    float[] lab = referenceRgb2lab(red, green, blue);
+                    int actual = LabConverter.lab2rgb(lab[0], lab[1], lab[2]);
+                    int[] expected = referenceLab2rgb(lab[0], lab[1], lab[2]);
+                    int[] channels = {(actual >> 16) & 0xFF, (actual >> 8) & 0xFF, actual & 0xFF};
+                    for (int c = 0; c < 3; c++) {
+                        int difference = Math.abs(channels[c] - expected[c]);
+                        assertTrue("off by " + difference, difference <= 1);
+                        if (difference != 0) mismatches++;
+                        checked++;
+                    }
+                }
+            }
+        }
+        // off by one only at .5 boundaries, which are rare
+        assertTrue(mismatches + " of " + checked, mismatches * 1000 < checked);
+    }
+
+    @Test
+    public void lab2rgbRoundTripsRgb2lab() {
+        float[] lab = new float[3];
+        for (int color = 0; color < 1 << 24; color += 4099) {
+            LabConverter.rgb2lab(color, lab, 0);
+            assertEquals(0xFF000000 | color, LabConverter.lab2rgb(lab[0], lab[1], lab[2]));
+        }
+    }
+
+    private static float[] referenceRgb2lab(int red, int green, int blue) {
+        float r = red / 255f;
+        float g = green / 255f;
+        float b = blue / 255f;
+
+        r = (r > 0.04045f) ? (float) Math.pow((r + 0.055f) / 1.055f, 2.4f) : r / 12.92f;
+        g = (g > 0.04045f) ? (float) Math.pow((g + 0.055f) / 1.055f, 2.4f) : g / 12.92f;
+        b = (b > 0.04045f) ? (float) Math.pow((b + 0.055f) / 1.055f, 2.4f) : b / 12.92f;
+
+        float x = (r * 0.4124564f) + (g * 0.3575761f) + (b * 0.1804375f);
+        float y = (r * 0.2126729f) + (g * 0.7151522f) + (b * 0.0721750f);
+        float z = (r * 0.0193339f) + (g * 0.1191920f) + (b * 0.9503041f);
+
+        float fx = (x / X_N > EPSILON) ? (float) Math.pow(x / X_N, 1f / 3f) : x / X_N * 7.787f + 16f / 116f;
+        float fy = (y / Y_N > EPSILON) ? (float) Math.pow(y / Y_N, 1f / 3f) : y / Y_N * 7.787f + 16f / 116f;
+        float fz = (z / Z_N > EPSILON) ? (float) Math.pow(z / Z_N, 1f / 3f) : z / Z_N * 7.787f + 16f / 116f;
+
+        return new float[]{116f * fy - 16f, 500f * (fx - fy), 200f * (fy - fz)};
+    }
+
+    private static int[] referenceLab2rgb(float L, float A, float B) {
+        float fy = (L + 16f) / 116f;
+        float fx = A / 500f + fy;
+        float fz = fy - B / 200f;
+
+        float x = X_N * labInvF(fx);
+        float y = Y_N * labInvF(fy);
+        float z = Z_N * labInvF(fz);
+
+        float r =  3.2404542f * x - 1.5371385f * y - 0.4985314f * z;
+        float g = -0.9692660f * x + 1.8760108f * y + 0.0415560f * z;
+        float b =  0.0556434f * x - 0.2040259f * y + 1.0572252f * z;
+
+        r = (r > 0.0031308f) ? (1.055f * (float) Math.pow(r, 1f / 2.4f) - 0.055f) : (12.92f * r);
+        g = (g > 0.0031308f) ? (1.055f * (float) Math.pow(g, 1f / 2.4f) - 0.055f) : (12.92f * g);
+        b = (b > 0.0031308f) ? (1.055f * (float) Math.pow(b, 1f / 2.4f) - 0.055f) : (12.92f * b);
+
+        return new int[]{
+                Math.max(0, Math.min(255, Math.round(r * 255f))),
+                Math.max(0, Math.min(255, Math.round(g * 255f))),
+                Math.max(0, Math.min(255, Math.round(b * 255f)))
+        };
+    }
+
+    private static float labInvF(float t) {
+        float t3 = t * t * t;
+        if (t3 > EPSILON) return t3;
+        return (t - 16f / 116f) / 7.787f;
+    }
+}
@@ -0,0 +1,139 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PaintHistoryTest {
+    private static final int NUM_CELLS = 1000;
+
+    private final PaintHistory history = new PaintHistory();
+    private final int[] grid = new int[NUM_CELLS];
+    private final PaintHistory.Applier applier = (cell, color) -> grid[cell] = color;
+
+    @Test
+    public void undoesAndRedoesWholeStrokes() {
+        stroke(1, 0, 1, 2);
+        stroke(2, 1, 2, 3);
+        int[] after = grid.clone();
+
+        assertTrue(history.undo(applier));
+        assertEquals(1, grid[1]);
+        assertEquals(1, grid[2]);
+        assertEquals(0, grid[3]);
+        assertTrue(history.undo(applier));
+        assertArrayEquals(new int[NUM_CELLS], grid);
+        assertFalse(history.undo(applier));
+
+        assertTrue(history.redo(applier));
+        assertTrue(history.redo(applier));
+        assertArrayEquals(after, grid);
+        assertFalse(history.redo(applier));
+    }
+
+    @Test
+    public void repaintingTheSameColorIsNotRecorded() {
+        stroke(1, 5);
+        stroke(1, 5);
+        assertTrue(history.undo(applier));
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    public void paintingAfterUndoDropsRedo() {
+        stroke(1, 0);
+        stroke(2, 1);
+        history.undo(applier);
+        assertTrue(history.canRedo());
+
+        // continues the stroke that was being painted, but still starts a new undo step
+        paint(3, 2);
+        assertFalse(history.canRedo());
+        history.undo(applier);
+        assertEquals(0, grid[2]);
+        assertEquals(1, grid[0]);
+        assertTrue(history.redo(applier));
+        assertEquals(3, grid[2]);
+        assertEquals(0, grid[1]);
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void growingKeepsOrder() {
+        Random random = new Random(1);
+        int[][] states = new int[200][];
+        // enough paints to double the ring several times
+        for (int s = 0; s < states.length; s++) {
+            history.beginStroke();
+            for (int i = 0; i < 20; i++) paint(1 + random.nextInt(9), random.nextInt(NUM_CELLS));
+            states[s] = grid.clone();
+        }
+        for (int s = states.length - 1; s > 0; s--) {
+            assertArrayEquals(states[s], grid);
+            history.undo(applier);
+        }
+        assertArrayEquals(states[0], grid);
+        for (int s = 1; s < states.length; s++) {
+            history.redo(applier);
+            assertArrayEquals(states[s], grid);
+        }
+    }
+
+    @Test
+    public void fullHistoryDropsOldestStroke() {
+        // strokes of 4 fill the ring exactly
+        int strokes = PaintHistory.MAX_OPERATIONS / 4;
+        for (int s = 0; s < strokes; s++) {
+            history.beginStroke();
+            for (int i = 0; i < 4; i++) paint(1 + (s + i) % 9, (s * 4 + i) % NUM_CELLS);
+        }
+        history.beginStroke();
+        paint(20, 7);
+
+        // the ring wrapped once the first stroke made room, and the cursor moved with it
+        int undone = 0;
+        while (history.undo(applier)) undone++;
+        assertEquals(strokes, undone);
+        assertFalse(history.canUndo());
+        // the dropped first stroke can no longer be undone
+        for (int i = 0; i < 4; i++) assertEquals(1 + i, grid[i]);
+
+        int redone = 0;
+        while (history.redo(applier)) redone++;
+        assertEquals(strokes, redone);
+        assertEquals(20, grid[7]);
+    }
+
+    @Test
+    public void undoAfterDropStopsAtTheOldestKeptStroke() {
+        // one paint per stroke, one more than fits
+        for (int i = 0; i <= PaintHistory.MAX_OPERATIONS; i++) {
+            history.beginStroke();
+            paint(1 + i % 9, i % NUM_CELLS);
+        }
+        // one paint undone, then a new one drops the redo branch and is kept
+        history.undo(applier);
+        history.beginStroke();
+        paint(20, 0);
+        assertFalse(history.canRedo());
+
+        int undone = 0;
+        while (history.undo(applier)) undone++;
+        assertEquals(PaintHistory.MAX_OPERATIONS, undone);
+    }
+
+    private void stroke(int color, int... cells) {
+        history.beginStroke();
+        for (int cell : cells) paint(color, cell);
+    }
+
+    private void paint(int color, int cell) {
+        history.record(cell, grid[cell], color);
+        grid[cell] = color;
+    }
+}
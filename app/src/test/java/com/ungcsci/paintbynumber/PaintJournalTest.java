@@ -0,0 +1,173 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class PaintJournalTest {
+    private static final int SIZE = 64;
+    private static final int NUM_CELLS = SIZE * SIZE;
+    private static final int NUM_COLORS = 8;
+    private static final int JOURNAL_HEADER = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Puzzle base = new Puzzle(SIZE, new int[NUM_COLORS], new byte[NUM_CELLS]);
+
+    @Test
+    public void newGameHasNoProgress() throws Exception {
+        PaintJournal journal = new PaintJournal(folder.getRoot(), base);
+        assertNull(journal.open(NUM_COLORS));
+        close(journal);
+    }
+
+    @Test
+    public void recordedPaintsComeBack() throws Exception {
+        PaintJournal journal = open();
+        journal.record(5, 3);
+        journal.record(NUM_CELLS - 1, NUM_COLORS);
+        journal.record(5, 4);
+        close(journal);
+
+        PaintJournal.Progress progress = reopen();
+        assertEquals(NUM_COLORS, progress.color_count);
+        assertEquals(4, progress.cells[5]);
+        assertEquals(NUM_COLORS, progress.cells[NUM_CELLS - 1]);
+        assertEquals(0, progress.cells[0]);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        PaintJournal journal = open();
+        journal.record(1, 2);
+        journal.record(2, 3);
+        close(journal);
+        // a record cut off halfway by a crash
+        try (FileOutputStream out = new FileOutputStream(journalFile(), true)) {
+            out.write(new byte[] {0, 0});
+        }
+
+        PaintJournal.Progress progress = reopen();
+        assertEquals(2, progress.cells[1]);
+        assertEquals(3, progress.cells[2]);
+        // reopening rewrote a clean journal, so new paints land after whole records
+        assertEquals(0, journalFile().length() % 4);
+
+        journal = new PaintJournal(folder.getRoot(), base);
+        journal.open(NUM_COLORS);
+        journal.record(3, 4);
+        close(journal);
+        progress = reopen();
+        assertEquals(2, progress.cells[1]);
+        assertEquals(4, progress.cells[3]);
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        PaintJournal journal = open();
+        journal.record(1, 2);
+        close(journal);
+        File stale = folder.newFile("stale");
+        Files.copy(journalFile().toPath(), stale.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // a reset snapshots the grid under the next generation
+        journal = new PaintJournal(folder.getRoot(), base);
+        journal.open(NUM_COLORS);
+        int[][] grid = new int[SIZE][SIZE];
+        grid[0][3] = 5;
+        journal.reset(NUM_COLORS - 1, grid);
+        close(journal);
+
+        // as if the process died after the snapshot was renamed, before the new journal
+        Files.copy(stale.toPath(), journalFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PaintJournal.Progress progress = reopen();
+        assertEquals(NUM_COLORS - 1, progress.color_count);
+        assertEquals(0, progress.cells[1]);
+        assertEquals(5, progress.cells[3]);
+    }
+
+    @Test
+    public void compactsOnceJournalMatchesSnapshot() throws Exception {
+        int threshold = NUM_CELLS / 2;
+        PaintJournal journal = open();
+        for (int i = 0; i < threshold - 1; i++) journal.record(i, 1 + i % NUM_COLORS);
+        close(journal);
+        assertEquals(JOURNAL_HEADER + (threshold - 1) * 4L, journalFile().length());
+
+        journal = new PaintJournal(folder.getRoot(), base);
+        assertNotNull(journal.open(NUM_COLORS));
+        journal.record(NUM_CELLS - 1, 1);
+        close(journal);
+        // everything moved into the snapshot and the journal started over
+        assertEquals(JOURNAL_HEADER, journalFile().length());
+
+        PaintJournal.Progress progress = reopen();
+        for (int i = 0; i < threshold - 1; i++) assertEquals(1 + i % NUM_COLORS, progress.cells[i]);
+        assertEquals(1, progress.cells[NUM_CELLS - 1]);
+    }
+
+    @Test
+    public void closedJournalIgnoresCalls() throws Exception {
+        PaintJournal journal = open();
+        journal.record(1, 2);
+        close(journal);
+
+        journal.record(2, 3);
+        journal.reset(NUM_COLORS, new int[SIZE][SIZE]);
+        journal.flush();
+        journal.close();
+
+        PaintJournal.Progress progress = reopen();
+        assertEquals(2, progress.cells[1]);
+        assertEquals(0, progress.cells[2]);
+    }
+
+    @Test
+    public void mappedPuzzleKeepsTheGame() throws Exception {
+        byte[] indexes = new byte[NUM_CELLS];
+        for (int i = 0; i < NUM_CELLS; i++) indexes[i] = (byte) (i % NUM_COLORS);
+        Puzzle puzzle = new Puzzle(SIZE, new int[NUM_COLORS], indexes);
+        File file = folder.newFile("mapped.puzzle");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            PuzzleFormat.write(puzzle, out, true);
+        }
+        // progress comes back whether the puzzle was just generated or read from the cache
+        assertEquals(PaintJournal.keyFor(puzzle), PaintJournal.keyFor(MappedPuzzle.open(file).toPuzzle()));
+    }
+
+    // a fresh game, with its first snapshot and journal written
+    private PaintJournal open() {
+        PaintJournal journal = new PaintJournal(folder.getRoot(), base);
+        assertNull(journal.open(NUM_COLORS));
+        return journal;
+    }
+
+    private PaintJournal.Progress reopen() throws InterruptedException {
+        PaintJournal journal = new PaintJournal(folder.getRoot(), base);
+        PaintJournal.Progress progress = journal.open(NUM_COLORS);
+        close(journal);
+        assertNotNull(progress);
+        return progress;
+    }
+
+    private static void close(PaintJournal journal) throws InterruptedException {
+        journal.close();
+        assertTrue(journal.awaitClosed(10_000));
+    }
+
+    private File journalFile() {
+        return new File(folder.getRoot(), PaintJournal.keyFor(base) + ".journal");
+    }
+}
@@ -0,0 +1,70 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class PuzzleCacheTest {
+    private static final int GRID_SIZE = 64;
+    private static final int NUM_COLORS = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] source_hash = hash(new byte[] {1, 2, 3});
+    private final Puzzle puzzle = new Puzzle(GRID_SIZE, new int[NUM_COLORS], new byte[GRID_SIZE * GRID_SIZE]);
+
+    @Test
+    public void storedPuzzleComesBack() throws IOException {
+        PuzzleCache cache = new PuzzleCache(folder.getRoot());
+        String key = PuzzleCache.keyFor(source_hash, GRID_SIZE, NUM_COLORS, new ImageProcessor.Options());
+        assertNull(cache.get(key));
+        cache.put(key, puzzle);
+        Puzzle cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(GRID_SIZE, cached.getSize());
+        assertArrayEquals(puzzle.getIndexes(), cached.getIndexes());
+    }
+
+    @Test
+    public void tunedDownRunIsNotServedForTheRequestedKey() throws IOException {
+        ImageProcessor.Options requested = new ImageProcessor.Options();
+        requested.time_budget_ms = 1;
+        // far more pixels than fit in a millisecond, so the tuner gives up quality
+        AutoTuner.Tuning tuning = AutoTuner.tune(requested, 2048, 2048, GRID_SIZE, NUM_COLORS, 1);
+        String requested_key = PuzzleCache.keyFor(source_hash, GRID_SIZE, NUM_COLORS, requested);
+        String tuned_key = PuzzleCache.keyFor(source_hash, GRID_SIZE, NUM_COLORS, tuning.options);
+        assertNotEquals(requested_key, tuned_key);
+
+        PuzzleCache cache = new PuzzleCache(folder.getRoot());
+        cache.put(tuned_key, puzzle);
+        assertNull(cache.get(requested_key));
+        assertNotNull(cache.get(tuned_key));
+    }
+
+    @Test
+    public void ampleBudgetKeepsTheRequestedKey() {
+        ImageProcessor.Options requested = new ImageProcessor.Options();
+        requested.time_budget_ms = 60_000;
+        AutoTuner.Tuning tuning = AutoTuner.tune(requested, GRID_SIZE, GRID_SIZE, GRID_SIZE, NUM_COLORS, 60_000);
+        assertEquals(PuzzleCache.keyFor(source_hash, GRID_SIZE, NUM_COLORS, requested),
+                PuzzleCache.keyFor(source_hash, GRID_SIZE, NUM_COLORS, tuning.options));
+    }
+
+    private static byte[] hash(byte[] source) {
+        try {
+            return PuzzleCache.hashSource(new ByteArrayInputStream(source));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.ungcsci.paintbynumber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PuzzleFormatTest {
+    private static final int SIZE = 37;  // odd, so 4-bit packing ends on half a byte
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void packedRoundTrip() throws IOException {
+        for (int num_colors : new int[] {2, 16, 17, 256}) {
+            Puzzle puzzle = noisyPuzzle(num_colors);
+            byte[] file = write(puzzle, false);
+            assertEquals(0, file[5]);
+            assertEquals(num_colors <= 16 ? 4 : 8, file[6]);
+            assertSame(puzzle, read(file));
+        }
+    }
+
+    @Test
+    public void runLengthRoundTrip() throws IOException {
+        for (int num_colors : new int[] {4, 200}) {
+            Puzzle puzzle = stripedPuzzle(num_colors);
+            byte[] file = write(puzzle, true);
+            assertEquals(PuzzleFormat.FLAG_RLE, file[5]);
+            assertEquals(num_colors <= 16 ? 4 : 8, file[6]);
+            assertSame(puzzle, read(file));
+        }
+    }
+
+    @Test
+    public void runsOnlyWhenSmaller() throws IOException {
+        // noise has a run per cell, twice the size of the packed grid
+        byte[] file = write(noisyPuzzle(8), true);
+        assertEquals(0, file[5]);
+    }
+
+    @Test
+    public void rejectsBadMagic() {
+        byte[] file = write(noisyPuzzle(8), false);
+        file[0] = 'X';
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsNewerVersion() {
+        byte[] file = write(noisyPuzzle(8), false);
+        file[4] = PuzzleFormat.VERSION + 1;
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsBadIndexWidth() {
+        byte[] file = write(noisyPuzzle(8), false);
+        file[6] = 2;
+        assertRejected(file);
+        // 4 bits cannot number 17 colors
+        file = write(noisyPuzzle(17), false);
+        file[6] = 4;
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsBadDataLength() {
+        byte[] file = write(noisyPuzzle(8), false);
+        ByteBuffer.wrap(file).putInt(12, 3);
+        assertRejected(file);
+        file = write(stripedPuzzle(8), true);
+        ByteBuffer.wrap(file).putInt(12, Integer.MAX_VALUE - 1);
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsTruncatedFile() {
+        byte[] file = write(noisyPuzzle(8), false);
+        assertRejected(Arrays.copyOf(file, file.length - 1));
+        assertRejected(Arrays.copyOf(file, PuzzleFormat.HEADER_SIZE - 1));
+    }
+
+    @Test
+    public void rejectsIndexPastPalette() {
+        // 4-bit cells can hold 15 even with 8 colors
+        byte[] file = write(noisyPuzzle(8), false);
+        file[file.length - 1] = (byte) 0xFF;
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsRunsNotCoveringGrid() {
+        byte[] file = write(stripedPuzzle(8), true);
+        // lengthen the last run past the grid, then shorten it
+        file[file.length - 2] = (byte) 0xFF;
+        assertRejected(file);
+        file[file.length - 2] = 0;
+        assertRejected(file);
+    }
+
+    @Test
+    public void mappedRoundTrip() throws IOException {
+        Puzzle[] puzzles = {noisyPuzzle(8), noisyPuzzle(200), stripedPuzzle(4), stripedPuzzle(200)};
+        for (Puzzle puzzle : puzzles) {
+            Puzzle mapped = map(write(puzzle, true));
+            assertEquals(puzzle.getSize(), mapped.getSize());
+            assertArrayEquals(puzzle.getPalette(), mapped.getPalette());
+            // read through the mapping cell by cell, then unpacked in one go
+            for (int i = 0; i < SIZE * SIZE; i++) assertEquals(puzzle.getIndex(i), mapped.getIndex(i));
+            assertArrayEquals(puzzle.getIndexes(), mapped.getIndexes());
+        }
+    }
+
+    @Test
+    public void mappingRejectsBadFiles() throws IOException {
+        byte[] file = write(noisyPuzzle(8), false);
+        assertMapRejected(Arrays.copyOf(file, file.length - 1));
+        assertMapRejected(Arrays.copyOf(file, PuzzleFormat.HEADER_SIZE - 1));
+        file[file.length - 1] = (byte) 0xFF;
+        assertMapRejected(file);
+
+        file = write(stripedPuzzle(8), true);
+        file[file.length - 1] = 8;
+        assertMapRejected(file);
+        file = write(stripedPuzzle(8), true);
+        file[file.length - 2] = 0;
+        assertMapRejected(file);
+    }
+
+    private static Puzzle noisyPuzzle(int num_colors) {
+        Random random = new Random(num_colors);
+        byte[] indexes = new byte[SIZE * SIZE];
+        for (int i = 0; i < indexes.length; i++) indexes[i] = (byte) random.nextInt(num_colors);
+        return new Puzzle(SIZE, palette(num_colors), indexes);
+    }
+
+    // long runs of one color, as posterized images mostly are
+    private static Puzzle stripedPuzzle(int num_colors) {
+        byte[] indexes = new byte[SIZE * SIZE];
+        for (int i = 0; i < indexes.length; i++) indexes[i] = (byte) ((i / 300) % num_colors);
+        return new Puzzle(SIZE, palette(num_colors), indexes);
+    }
+
+    private static int[] palette(int num_colors) {
+        int[] palette = new int[num_colors];
+        for (int k = 0; k < num_colors; k++) palette[k] = 0xFF000000 | (k * 0x010101);
+        return palette;
+    }
+
+    private static byte[] write(Puzzle puzzle, boolean allow_rle) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PuzzleFormat.write(puzzle, new DataOutputStream(bytes), allow_rle);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Puzzle read(byte[] file) throws IOException {
+        return PuzzleFormat.read(new DataInputStream(new ByteArrayInputStream(file)));
+    }
+
+    private Puzzle map(byte[] file) throws IOException {
+        File mapped = folder.newFile();
+        Files.write(mapped.toPath(), file);
+        return MappedPuzzle.open(mapped).toPuzzle();
+    }
+
+    private void assertMapRejected(byte[] file) throws IOException {
+        try {
+            map(file);
+            fail("Mapped a bad puzzle file");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertSame(Puzzle expected, Puzzle actual) {
+        assertEquals(expected.getSize(), actual.getSize());
+        assertArrayEquals(expected.getPalette(), actual.getPalette());
+        assertArrayEquals(expected.getIndexes(), actual.getIndexes());
+    }
+
+    private static void assertRejected(byte[] file) {
+        try {
+            read(file);
+            fail("Read a bad puzzle file");
+        } catch (IOException expected) {
+        }
+    }
+}